@@ -0,0 +1,68 @@
+package hudson.plugins.virtualization;
+
+import hudson.model.FreeStyleProject;
+import net.java.dev.vcc.api.Datacenter;
+import net.java.dev.vcc.api.PowerState;
+import org.jvnet.hudson.test.HudsonTestCase;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A Hudson for the benchmarks to run the plugin in, with a {@link VirtualDatacenter} configured against a
+ * {@link FakeDatacenter}. The benchmarks go through the same code as a real installation, only the datacenter is
+ * fake.
+ */
+final class BenchmarkHudson extends HudsonTestCase {
+
+    static final String DATACENTER_URI = "vcc+fake://benchmark/";
+
+    private FakeDatacenter fake;
+    private VirtualDatacenter datacenter;
+
+    BenchmarkHudson() {
+        // the harness looks up the running test method by name
+        super("benchmark");
+    }
+
+    public void benchmark() {
+    }
+
+    /**
+     * Starts Hudson and configures the datacenter, waiting for its first inventory.
+     *
+     * @param size         how many computers the datacenter has.
+     * @param state        the power state of every computer.
+     * @param latencyMicros how long every call to the datacenter takes.
+     */
+    void start(int size, PowerState state, long latencyMicros) throws Exception {
+        setUp();
+        fake = new FakeDatacenter(size, state);
+        fake.setLatency(latencyMicros, TimeUnit.MICROSECONDS);
+        datacenter = new VirtualDatacenter(DATACENTER_URI, "benchmark", "benchmark", 60, 0, 0, false, null,
+                Collections.<VirtualComputerTemplate>emptyList(), new DatacenterSession.Connector() {
+                    public Datacenter connect(String datacenterUri, String username, String password) {
+                        return fake.getDatacenter();
+                    }
+                });
+        hudson.clouds.add(datacenter);
+        datacenter.awaitRefresh();
+    }
+
+    void stop() throws Exception {
+        tearDown();
+    }
+
+    FakeDatacenter getFake() {
+        return fake;
+    }
+
+    VirtualDatacenter getDatacenter() {
+        return datacenter;
+    }
+
+    FreeStyleProject newProject() throws IOException {
+        return createFreeStyleProject();
+    }
+}
@@ -0,0 +1,72 @@
+package hudson.plugins.virtualization;
+
+import hudson.model.FreeStyleProject;
+import net.java.dev.vcc.api.PowerState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how many builds per second can run with a {@link VirtualComputerBuildWrapper} against a
+ * {@link FakeDatacenter}. Each build goes through Hudson: the wrapper's setUp resumes the build's suspended virtual
+ * computers and waits for them to run, and its tearDown suspends them again. The watcher polls every 10ms rather
+ * than every two seconds, so that the plugin's own overhead is not hidden by the poll interval.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Dhudson.plugins.virtualization.PowerStateWatcher.pollMillis=10")
+public class BuildBenchmark {
+
+    @Param({"100", "1000", "10000", "50000"})
+    public int size;
+
+    /**
+     * How long every call to the datacenter takes.
+     */
+    @Param({"0", "500"})
+    public long latencyMicros;
+
+    /**
+     * How many virtual computers each build uses.
+     */
+    @Param({"1", "8"})
+    public int computersPerBuild;
+
+    private BenchmarkHudson hudson;
+    private FreeStyleProject project;
+
+    @Setup
+    public void setUp() throws Exception {
+        hudson = new BenchmarkHudson();
+        hudson.start(size, PowerState.SUSPENDED, latencyMicros);
+        VirtualComputerBuildWrapper.VirtualComputerResource[] resources =
+                new VirtualComputerBuildWrapper.VirtualComputerResource[computersPerBuild];
+        for (int i = 0; i < resources.length; i++) {
+            // spread over the inventory, so that the handles are not all next to each other in the cache
+            resources[i] = new VirtualComputerBuildWrapper.VirtualComputerResource(BenchmarkHudson.DATACENTER_URI,
+                    FakeDatacenter.name(i * (size / computersPerBuild)));
+        }
+        project = hudson.newProject();
+        project.getBuildWrappersList().add(new VirtualComputerBuildWrapper(resources, null, 0, false, false));
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        hudson.stop();
+    }
+
+    @Benchmark
+    public Object build() throws Exception {
+        return project.scheduleBuild2(0).get();
+    }
+}
@@ -0,0 +1,115 @@
+package hudson.plugins.virtualization;
+
+import net.java.dev.vcc.api.Computer;
+import net.java.dev.vcc.api.PowerState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the inventory side of a {@link VirtualDatacenter} against a {@link FakeDatacenter}: full refreshes,
+ * resolving computers (which mostly misses the handle cache once the inventory is larger than it), and the reads
+ * that builds and the UI make, alone, contended and while a refresh is running.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+public class InventoryBenchmark {
+
+    @Param({"100", "1000", "10000", "50000"})
+    public int size;
+
+    /**
+     * How long every call to the datacenter takes.
+     */
+    @Param({"0", "500"})
+    public long latencyMicros;
+
+    private BenchmarkHudson hudson;
+    private VirtualDatacenter datacenter;
+
+    @Setup
+    public void setUp() throws Exception {
+        hudson = new BenchmarkHudson();
+        hudson.start(size, PowerState.SUSPENDED, latencyMicros);
+        datacenter = hudson.getDatacenter();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        hudson.stop();
+    }
+
+    /**
+     * Strides through the inventory so that consecutive calls on a thread ask for different computers.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int next = 0;
+
+        String next(int size) {
+            next = (next + 7919) % size;
+            return FakeDatacenter.name(next);
+        }
+    }
+
+    @Benchmark
+    public Map<String, ComputerRecord> refresh() throws Exception {
+        return datacenter.awaitRefresh().records;
+    }
+
+    @Benchmark
+    public Computer getComputer(Cursor cursor) throws Exception {
+        return datacenter.getComputer(cursor.next(size));
+    }
+
+    @Benchmark
+    public VirtualComputer getVirtualComputers(Cursor cursor) {
+        return datacenter.getVirtualComputers().get(cursor.next(size));
+    }
+
+    @Benchmark
+    public VirtualComputer findVirtualComputer(Cursor cursor) {
+        return VirtualComputerIndex.get().find(BenchmarkHudson.DATACENTER_URI, cursor.next(size));
+    }
+
+    @Benchmark
+    @Threads(8)
+    public VirtualComputer contendedGetVirtualComputers(Cursor cursor) {
+        return datacenter.getVirtualComputers().get(cursor.next(size));
+    }
+
+    @Benchmark
+    @Threads(8)
+    public VirtualComputer contendedFindVirtualComputer(Cursor cursor) {
+        return VirtualComputerIndex.get().find(BenchmarkHudson.DATACENTER_URI, cursor.next(size));
+    }
+
+    @Benchmark
+    @Group("duringRefresh")
+    @GroupThreads(7)
+    public VirtualComputer readDuringRefresh(Cursor cursor) {
+        return datacenter.getVirtualComputers().get(cursor.next(size));
+    }
+
+    @Benchmark
+    @Group("duringRefresh")
+    @GroupThreads(1)
+    public Map<String, ComputerRecord> refreshDuringReads() throws Exception {
+        return datacenter.awaitRefresh().records;
+    }
+}
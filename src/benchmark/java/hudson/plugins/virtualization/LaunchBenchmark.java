@@ -0,0 +1,106 @@
+package hudson.plugins.virtualization;
+
+import hudson.model.TaskListener;
+import hudson.slaves.JNLPLauncher;
+import hudson.util.NullStream;
+import hudson.util.StreamTaskListener;
+import net.java.dev.vcc.api.PowerState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures how many slaves per second {@link VirtualComputerLauncher} can launch and disconnect against a
+ * {@link FakeDatacenter}: each operation resumes a suspended virtual computer, waits for the
+ * {@link PowerStateWatcher} to see it running, and suspends it again. The secondary launcher is a JNLP launcher,
+ * which does nothing. The watcher polls every 10ms rather than every two seconds, so that the plugin's own overhead
+ * is not hidden by the poll interval.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Dhudson.plugins.virtualization.PowerStateWatcher.pollMillis=10")
+public class LaunchBenchmark {
+
+    /**
+     * The most threads any benchmark here runs with.
+     */
+    private static final int MAX_THREADS = 8;
+
+    @Param({"100", "1000", "10000", "50000"})
+    public int size;
+
+    /**
+     * How long every call to the datacenter takes.
+     */
+    @Param({"0", "500"})
+    public long latencyMicros;
+
+    private BenchmarkHudson hudson;
+    private VirtualDatacenter datacenter;
+    private TaskListener listener;
+
+    @Setup
+    public void setUp() throws Exception {
+        hudson = new BenchmarkHudson();
+        hudson.start(size, PowerState.SUSPENDED, latencyMicros);
+        datacenter = hudson.getDatacenter();
+        listener = new StreamTaskListener(new NullStream());
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        hudson.stop();
+    }
+
+    /**
+     * Strides through the inventory from a different start on each thread, so that threads seldom launch the same
+     * virtual computer at once.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        private static final AtomicInteger THREADS = new AtomicInteger();
+
+        private int next;
+
+        @Setup
+        public void setUp() {
+            next = THREADS.getAndIncrement() % MAX_THREADS;
+        }
+
+        String next(int size) {
+            String name = FakeDatacenter.name(next);
+            next = (next + MAX_THREADS * 7919) % size;
+            return name;
+        }
+    }
+
+    @Benchmark
+    public void launch(Cursor cursor) throws Exception {
+        launchAndDisconnect(cursor.next(size));
+    }
+
+    @Benchmark
+    @Threads(MAX_THREADS)
+    public void contendedLaunch(Cursor cursor) throws Exception {
+        launchAndDisconnect(cursor.next(size));
+    }
+
+    private void launchAndDisconnect(String name) throws Exception {
+        VirtualComputerLauncher launcher =
+                new VirtualComputerLauncher(new JNLPLauncher(), datacenter.getVirtualComputers().get(name));
+        launcher.launch(null, listener);
+        launcher.afterDisconnect(null, listener);
+    }
+}
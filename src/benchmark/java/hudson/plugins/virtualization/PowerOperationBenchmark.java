@@ -0,0 +1,52 @@
+package hudson.plugins.virtualization;
+
+import net.java.dev.vcc.api.PowerState;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the shared parts of power operations under contention: many callers asking for the power state of the
+ * same computer, and admission through an unlimited {@link PowerOperationScheduler}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Threads(8)
+public class PowerOperationBenchmark {
+
+    private FakeComputer computer;
+    private SingleFlight<String, PowerState> powerStates;
+    private Callable<PowerState> query;
+    private PowerOperationScheduler scheduler;
+
+    @Setup
+    public void setUp() {
+        computer = new FakeComputer("vm0000", PowerState.RUNNING);
+        powerStates = new SingleFlight<String, PowerState>(1000);
+        query = new Callable<PowerState>() {
+            public PowerState call() throws Exception {
+                return computer.getComputer().getState();
+            }
+        };
+        scheduler = new PowerOperationScheduler("vcc+benchmark://", 0, 0, PowerOperationScheduler.Source.LAUNCHER);
+    }
+
+    @Benchmark
+    public PowerState sharedPowerState() throws Exception {
+        return powerStates.get("vm0000", query);
+    }
+
+    @Benchmark
+    public void admission() throws Exception {
+        scheduler.acquire(PowerOperationScheduler.Source.LAUNCHER, "Start of vm0000", null).release();
+    }
+}
@@ -0,0 +1,123 @@
+package hudson.plugins.virtualization;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stops connection attempts to a datacenter that keeps failing.
+ * <p/>
+ * After a number of consecutive failures the breaker opens and attempts fail immediately instead of each tying up a
+ * thread for the full connect timeout. Once the backoff has elapsed a single attempt is let through as a probe: if it
+ * succeeds the breaker closes, otherwise it opens again for twice as long.
+ */
+final class CircuitBreaker {
+
+    private static final Logger LOGGER = Logger.getLogger(CircuitBreaker.class.getName());
+
+    /**
+     * How many consecutive failures open the breaker.
+     */
+    private static final long FAILURE_THRESHOLD =
+            Long.getLong(CircuitBreaker.class.getName() + ".failureThreshold", 3L);
+
+    /**
+     * How long the breaker stays open after it first opens.
+     */
+    private static final long INITIAL_BACKOFF_SECONDS =
+            Long.getLong(CircuitBreaker.class.getName() + ".initialBackoffSeconds", 5L);
+
+    /**
+     * The longest the breaker stays open between probes.
+     */
+    private static final long MAX_BACKOFF_SECONDS =
+            Long.getLong(CircuitBreaker.class.getName() + ".maxBackoffSeconds", 300L);
+
+    private final String datacenterUri;
+    private final long failureThreshold;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+
+    private int failures = 0;
+    private long backoffMillis = 0;
+    private long openUntil = 0;
+    private boolean probing = false;
+
+    CircuitBreaker(String datacenterUri) {
+        this(datacenterUri, FAILURE_THRESHOLD, TimeUnit.SECONDS.toMillis(INITIAL_BACKOFF_SECONDS),
+                TimeUnit.SECONDS.toMillis(MAX_BACKOFF_SECONDS));
+    }
+
+    /**
+     * @param datacenterUri        the datacenter, for the log.
+     * @param failureThreshold     how many consecutive failures open the breaker.
+     * @param initialBackoffMillis how long the breaker stays open after it first opens.
+     * @param maxBackoffMillis     the longest the breaker stays open between probes.
+     */
+    CircuitBreaker(String datacenterUri, long failureThreshold, long initialBackoffMillis, long maxBackoffMillis) {
+        this.datacenterUri = datacenterUri;
+        this.failureThreshold = failureThreshold;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+    }
+
+    /**
+     * Asks for permission to make an attempt. Every permitted attempt must be followed by {@link #succeeded()},
+     * {@link #failed()} or {@link #abandon()}.
+     *
+     * @throws IOException if the breaker is open.
+     */
+    synchronized void acquire() throws IOException {
+        if (failures < failureThreshold) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (probing || now < openUntil) {
+            throw new IOException("Not connecting to " + datacenterUri + " after " + failures
+                    + " consecutive failures, next attempt in "
+                    + TimeUnit.MILLISECONDS.toSeconds(Math.max(0, openUntil - now)) + "s");
+        }
+        LOGGER.log(Level.FINE, "Probing {0}", datacenterUri);
+        probing = true;
+    }
+
+    synchronized void succeeded() {
+        if (failures >= failureThreshold) {
+            LOGGER.log(Level.INFO, "Connection to {0} restored", datacenterUri);
+        }
+        failures = 0;
+        backoffMillis = 0;
+        openUntil = 0;
+        probing = false;
+    }
+
+    synchronized void failed() {
+        failures++;
+        if (failures < failureThreshold) {
+            return;
+        }
+        backoffMillis = backoffMillis == 0
+                ? initialBackoffMillis
+                : Math.min(backoffMillis * 2, maxBackoffMillis);
+        openUntil = System.currentTimeMillis() + backoffMillis;
+        probing = false;
+        LOGGER.log(Level.WARNING, "{0} consecutive failures connecting to {1}, next attempt in {2}s",
+                new Object[]{failures, datacenterUri, TimeUnit.MILLISECONDS.toSeconds(backoffMillis)});
+    }
+
+    /**
+     * Records that a permitted attempt ended without telling us anything about the datacenter, for example because
+     * the caller was interrupted.
+     */
+    synchronized void abandon() {
+        probing = false;
+    }
+
+    /**
+     * Returns {@code true} if attempts are currently being refused.
+     */
+    synchronized boolean isOpen() {
+        return failures >= failureThreshold;
+    }
+}
@@ -0,0 +1,116 @@
+package hudson.plugins.virtualization;
+
+import net.java.dev.vcc.api.Computer;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The {@link Computer} handles of a datacenter that were used most recently.
+ * <p/>
+ * The inventory refresh offers every handle it enumerates. A handle is kept if it is already cached, if someone has
+ * asked for it since the last refresh, or if there is still room; the least recently used handles are dropped beyond
+ * the size limit. A handle that was resolved on its own, because it was not cached, is {@link #put put} in as a use.
+ */
+final class ComputerHandleCache {
+
+    private final int size;
+
+    /**
+     * The handles in least recently used order.
+     */
+    private final Map<String, Handle> handles;
+
+    /**
+     * The same handles, for updates that must not count as a use.
+     */
+    private final Map<String, Handle> byName = new HashMap<String, Handle>();
+
+    /**
+     * Names that were asked for but not cached, to be kept by the next refresh.
+     */
+    private final Set<String> wanted = new HashSet<String>();
+
+    ComputerHandleCache(final int size) {
+        this.size = Math.max(1, size);
+        this.handles = new LinkedHashMap<String, Handle>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Handle> eldest) {
+                if (size() > ComputerHandleCache.this.size) {
+                    byName.remove(eldest.getKey());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached handle, or {@code null} after remembering that the next refresh should keep it.
+     */
+    synchronized Computer get(String name) {
+        Handle handle = handles.get(name);
+        if (handle == null) {
+            wanted.add(name);
+            return null;
+        }
+        return handle.computer;
+    }
+
+    /**
+     * Offers a handle enumerated by an inventory refresh.
+     */
+    synchronized void offer(String name, Computer computer) {
+        Handle handle = byName.get(name);
+        if (handle != null) {
+            // a refresh is not a use, so the handle keeps its place
+            handle.computer = computer;
+        } else if (wanted.remove(name) || handles.size() < size) {
+            handle = new Handle(computer);
+            handles.put(name, handle);
+            byName.put(name, handle);
+        }
+    }
+
+    /**
+     * Caches a handle that was resolved because someone asked for it.
+     */
+    synchronized void put(String name, Computer computer) {
+        wanted.remove(name);
+        Handle handle = new Handle(computer);
+        handles.put(name, handle);
+        byName.put(name, handle);
+    }
+
+    /**
+     * Drops the handles of computers that are no longer in the datacenter and forgets requests for them.
+     */
+    synchronized void retainAll(Set<String> names) {
+        handles.keySet().retainAll(names);
+        byName.keySet().retainAll(names);
+        wanted.retainAll(names);
+    }
+
+    /**
+     * Drops a handle that no longer works.
+     */
+    synchronized void remove(String name) {
+        handles.remove(name);
+        byName.remove(name);
+    }
+
+    synchronized int getCount() {
+        return handles.size();
+    }
+
+    private static final class Handle {
+        private Computer computer;
+
+        private Handle(Computer computer) {
+            this.computer = computer;
+        }
+    }
+}
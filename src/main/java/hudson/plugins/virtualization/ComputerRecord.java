@@ -0,0 +1,60 @@
+package hudson.plugins.virtualization;
+
+import net.java.dev.vcc.api.Computer;
+import net.java.dev.vcc.api.ManagedObjectId;
+import net.java.dev.vcc.api.PowerState;
+
+/**
+ * What the inventory remembers about a computer in a datacenter: its name, its id and the last power state anyone
+ * saw. Unlike a {@link Computer} handle it holds no session resources, so the inventory can keep one per computer.
+ */
+public final class ComputerRecord {
+
+    private final String name;
+    private final ManagedObjectId<Computer> id;
+    private volatile PowerState lastState;
+    private volatile long lastStateMillis;
+
+    ComputerRecord(String name, ManagedObjectId<Computer> id) {
+        this.name = name.intern();
+        this.id = id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The id of the computer, or {@code null} if the record was loaded from a saved inventory.
+     */
+    public ManagedObjectId<Computer> getId() {
+        return id;
+    }
+
+    /**
+     * The last power state seen, or {@code null} if it has not been asked for since the computer was enumerated.
+     */
+    public PowerState getLastState() {
+        return lastState;
+    }
+
+    /**
+     * When the last power state was seen.
+     */
+    public long getLastStateMillis() {
+        return lastStateMillis;
+    }
+
+    void recordState(PowerState state) {
+        lastStateMillis = System.currentTimeMillis();
+        lastState = state;
+    }
+
+    /**
+     * Carries the last seen power state over from the record of a previous inventory.
+     */
+    void copyState(ComputerRecord previous) {
+        lastStateMillis = previous.lastStateMillis;
+        lastState = previous.lastState;
+    }
+}
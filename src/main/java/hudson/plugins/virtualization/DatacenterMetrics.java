@@ -0,0 +1,224 @@
+package hudson.plugins.virtualization;
+
+import net.java.dev.vcc.api.PowerState;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency and throughput measurements for one {@link VirtualDatacenter}.
+ */
+public final class DatacenterMetrics {
+
+    private static final long[] MILLIS_BUCKETS =
+            {10, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 120000, 300000};
+
+    private static final long[] SIZE_BUCKETS = {10, 100, 1000, 5000, 10000, 20000, 50000};
+
+    private final Histogram connectMillis = new Histogram(MILLIS_BUCKETS);
+    private final Histogram refreshMillis = new Histogram(MILLIS_BUCKETS);
+    private final Histogram inventorySize = new Histogram(SIZE_BUCKETS);
+    private final Histogram lookupMillis = new Histogram(MILLIS_BUCKETS);
+    private final Histogram timeToRunningMillis = new Histogram(MILLIS_BUCKETS);
+    private final Histogram timeToSuspendedMillis = new Histogram(MILLIS_BUCKETS);
+
+    private final AtomicLong connects = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+    private final AtomicLong failedConnects = new AtomicLong();
+    private final AtomicLong rejectedConnects = new AtomicLong();
+    private final AtomicLong failedRefreshes = new AtomicLong();
+    private final AtomicLong failedPowerOperations = new AtomicLong();
+
+    private final AtomicInteger powerOperationsInFlight = new AtomicInteger();
+    private final AtomicInteger refreshesInFlight = new AtomicInteger();
+
+    void recordConnect(long millis, boolean reconnect) {
+        connectMillis.record(millis);
+        connects.incrementAndGet();
+        if (reconnect) {
+            reconnects.incrementAndGet();
+        }
+    }
+
+    void recordFailedConnect() {
+        failedConnects.incrementAndGet();
+    }
+
+    /**
+     * Records a connect that was refused because the datacenter's circuit breaker is open.
+     */
+    void recordRejectedConnect() {
+        rejectedConnects.incrementAndGet();
+    }
+
+    void refreshStarted() {
+        refreshesInFlight.incrementAndGet();
+    }
+
+    void refreshFinished(long millis, int size) {
+        refreshesInFlight.decrementAndGet();
+        refreshMillis.record(millis);
+        inventorySize.record(size);
+    }
+
+    void refreshFailed() {
+        refreshesInFlight.decrementAndGet();
+        failedRefreshes.incrementAndGet();
+    }
+
+    void recordLookup(long millis) {
+        lookupMillis.record(millis);
+    }
+
+    void powerOperationStarted() {
+        powerOperationsInFlight.incrementAndGet();
+    }
+
+    /**
+     * Records the end of a power operation.
+     *
+     * @param target the state the operation was waiting for.
+     * @param millis how long it took to reach the state.
+     */
+    void powerOperationFinished(PowerState target, long millis) {
+        powerOperationsInFlight.decrementAndGet();
+        if (PowerState.RUNNING.equals(target)) {
+            timeToRunningMillis.record(millis);
+        } else if (PowerState.SUSPENDED.equals(target)) {
+            timeToSuspendedMillis.record(millis);
+        }
+    }
+
+    /**
+     * Records the end of a power operation that was not waited for.
+     */
+    void powerOperationFinished() {
+        powerOperationsInFlight.decrementAndGet();
+    }
+
+    void powerOperationFailed() {
+        powerOperationsInFlight.decrementAndGet();
+        failedPowerOperations.incrementAndGet();
+    }
+
+    public int getPowerOperationsInFlight() {
+        return powerOperationsInFlight.get();
+    }
+
+    public long getFailedPowerOperations() {
+        return failedPowerOperations.get();
+    }
+
+    public long getReconnects() {
+        return reconnects.get();
+    }
+
+    public long getRejectedConnects() {
+        return rejectedConnects.get();
+    }
+
+    /**
+     * Returns the histograms keyed by a human readable description.
+     */
+    public Map<String, Histogram> getHistograms() {
+        Map<String, Histogram> result = new LinkedHashMap<String, Histogram>();
+        result.put("Connect (ms)", connectMillis);
+        result.put("Inventory refresh (ms)", refreshMillis);
+        result.put("Inventory size", inventorySize);
+        result.put("Lookup (ms)", lookupMillis);
+        result.put("Time to running (ms)", timeToRunningMillis);
+        result.put("Time to suspended (ms)", timeToSuspendedMillis);
+        return result;
+    }
+
+    public JSONObject toJSON() {
+        JSONObject histograms = new JSONObject();
+        histograms.put("connectMillis", connectMillis.toJSON());
+        histograms.put("refreshMillis", refreshMillis.toJSON());
+        histograms.put("inventorySize", inventorySize.toJSON());
+        histograms.put("lookupMillis", lookupMillis.toJSON());
+        histograms.put("timeToRunningMillis", timeToRunningMillis.toJSON());
+        histograms.put("timeToSuspendedMillis", timeToSuspendedMillis.toJSON());
+        JSONObject counters = new JSONObject();
+        counters.put("connects", connects.get());
+        counters.put("reconnects", reconnects.get());
+        counters.put("failedConnects", failedConnects.get());
+        counters.put("rejectedConnects", rejectedConnects.get());
+        counters.put("failedRefreshes", failedRefreshes.get());
+        counters.put("failedPowerOperations", failedPowerOperations.get());
+        JSONObject gauges = new JSONObject();
+        gauges.put("powerOperationsInFlight", powerOperationsInFlight.get());
+        gauges.put("refreshesInFlight", refreshesInFlight.get());
+        JSONObject result = new JSONObject();
+        result.put("histograms", histograms);
+        result.put("counters", counters);
+        result.put("gauges", gauges);
+        return result;
+    }
+
+    /**
+     * A histogram with fixed bucket boundaries.
+     */
+    public static final class Histogram {
+        private final long[] bounds;
+        private final long[] counts;
+        private long count;
+        private long sum;
+        private long min = Long.MAX_VALUE;
+        private long max = Long.MIN_VALUE;
+
+        private Histogram(long[] bounds) {
+            this.bounds = bounds;
+            this.counts = new long[bounds.length + 1];
+        }
+
+        synchronized void record(long value) {
+            int i = 0;
+            while (i < bounds.length && value > bounds[i]) {
+                i++;
+            }
+            counts[i]++;
+            count++;
+            sum += value;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+
+        public synchronized long getCount() {
+            return count;
+        }
+
+        public synchronized long getMean() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        public synchronized long getMin() {
+            return count == 0 ? 0 : min;
+        }
+
+        public synchronized long getMax() {
+            return count == 0 ? 0 : max;
+        }
+
+        public synchronized JSONObject toJSON() {
+            JSONArray buckets = new JSONArray();
+            for (int i = 0; i < counts.length; i++) {
+                JSONObject bucket = new JSONObject();
+                bucket.put("le", i < bounds.length ? String.valueOf(bounds[i]) : "+Inf");
+                bucket.put("count", counts[i]);
+                buckets.add(bucket);
+            }
+            JSONObject result = new JSONObject();
+            result.put("count", count);
+            result.put("mean", getMean());
+            result.put("min", getMin());
+            result.put("max", getMax());
+            result.put("buckets", buckets);
+            return result;
+        }
+    }
+}
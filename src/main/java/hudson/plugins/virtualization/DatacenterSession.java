@@ -0,0 +1,291 @@
+package hudson.plugins.virtualization;
+
+import net.java.dev.vcc.api.Datacenter;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The session to one virtual datacenter, shared by everything that talks to it.
+ * <p/>
+ * vcc-api binds each {@link net.java.dev.vcc.api.Computer} handle to the session that enumerated it, so the power
+ * operations on a datacenter's computers always go through the session of the inventory refresh and there is nothing
+ * to gain from a second session. A broken session is evicted and re-established by the next caller. A background
+ * keep-alive evicts a session that has been closed by the datacenter and reconnects it before anyone needs it. All
+ * connects go through a {@link CircuitBreaker}, so while the datacenter is unreachable callers fail fast rather than
+ * each waiting out the connect timeout.
+ * <p/>
+ * Saving the cloud configuration replaces the {@link VirtualDatacenter}. Once the datacenter that owns this session
+ * has been replaced (or removed) and has nothing left in flight, the keep-alive closes the session for good.
+ */
+final class DatacenterSession {
+
+    private static final Logger LOGGER = Logger.getLogger(DatacenterSession.class.getName());
+
+    /**
+     * How often the session is validated.
+     */
+    private static final long KEEP_ALIVE_SECONDS =
+            Long.getLong(DatacenterSession.class.getName() + ".keepAliveSeconds", 60L);
+
+    private final VirtualDatacenter owner;
+    private final String datacenterUri;
+    private final String username;
+    private final String password;
+    private final DatacenterMetrics metrics;
+    private final Connector connector;
+    private final CircuitBreaker breaker;
+
+    private Datacenter datacenter;
+    private int borrowed;
+    private boolean connecting;
+    /**
+     * Whether a session has ever been established, so that later connects count as reconnects.
+     */
+    private boolean connected;
+    private boolean closed;
+
+    DatacenterSession(VirtualDatacenter owner, String password, DatacenterMetrics metrics, Connector connector) {
+        this.owner = owner;
+        this.datacenterUri = owner.getDatacenterUri();
+        this.username = owner.getUsername();
+        this.password = password;
+        this.metrics = metrics;
+        this.connector = connector;
+        this.breaker = new CircuitBreaker(datacenterUri);
+        scheduleKeepAlive(this);
+    }
+
+    /**
+     * Borrows the session. It must be given back with {@link #release(Datacenter)}.
+     *
+     * @return an open session.
+     * @throws IOException if no session could be established.
+     */
+    Datacenter borrow() throws IOException, InterruptedException {
+        while (true) {
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("The datacenter " + datacenterUri + " is no longer configured");
+                }
+                if (datacenter != null && isOpen(datacenter)) {
+                    borrowed++;
+                    return datacenter;
+                }
+                if (connecting) {
+                    // someone else is connecting, wait for them to finish
+                    wait(TimeUnit.SECONDS.toMillis(1));
+                    continue;
+                }
+                evict();
+                connecting = true;
+            }
+            connect();
+        }
+    }
+
+    /**
+     * Gives back a borrowed session.
+     */
+    synchronized void release(Datacenter datacenter) {
+        if (this.datacenter == datacenter && borrowed > 0) {
+            borrowed--;
+        }
+    }
+
+    /**
+     * Evicts a session that a caller found to be broken.
+     */
+    synchronized void invalidate(Datacenter datacenter) {
+        if (this.datacenter == datacenter) {
+            evict();
+        }
+    }
+
+    /**
+     * Returns {@code true} if the session is currently open.
+     */
+    synchronized boolean isOpen() {
+        return datacenter != null && isOpen(datacenter);
+    }
+
+    /**
+     * Returns {@code true} if connection attempts are being refused after repeated failures.
+     */
+    boolean isCircuitOpen() {
+        return breaker.isOpen();
+    }
+
+    /**
+     * Closes the session for good.
+     */
+    synchronized void close() {
+        closed = true;
+        evict();
+    }
+
+    private void connect() throws IOException, InterruptedException {
+        Datacenter datacenter = null;
+        long start = System.currentTimeMillis();
+        boolean attempted = false;
+        try {
+            breaker.acquire();
+            attempted = true;
+            try {
+                datacenter = connector.connect(datacenterUri, username, password);
+            } catch (IOException e) {
+                breaker.failed();
+                throw e;
+            } catch (InterruptedException e) {
+                breaker.abandon();
+                throw e;
+            } catch (RuntimeException e) {
+                breaker.abandon();
+                throw e;
+            }
+            breaker.succeeded();
+            metrics.recordConnect(System.currentTimeMillis() - start, connected);
+        } finally {
+            synchronized (this) {
+                if (datacenter == null) {
+                    if (attempted) {
+                        metrics.recordFailedConnect();
+                    } else {
+                        metrics.recordRejectedConnect();
+                    }
+                } else if (closed) {
+                    // closed while connecting
+                    close(datacenter);
+                    datacenter = null;
+                }
+                this.datacenter = datacenter;
+                borrowed = 0;
+                connecting = false;
+                connected |= datacenter != null;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Closes the session if its datacenter has been retired, otherwise evicts it if it is no longer open and
+     * re-establishes it.
+     *
+     * @return {@code false} once the session has been closed for good.
+     */
+    private boolean keepAlive() {
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            if (borrowed == 0 && !connecting && owner.isRetired()) {
+                LOGGER.log(Level.INFO, "Closing the session to {0}, the datacenter is no longer configured",
+                        datacenterUri);
+                close();
+                return false;
+            }
+            if (datacenter == null || connecting || isOpen(datacenter)) {
+                return true;
+            }
+            LOGGER.log(Level.INFO, "Evicting closed session to {0}", datacenterUri);
+            evict();
+            connecting = true;
+        }
+        try {
+            connect();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not re-establish session to " + datacenterUri, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return true;
+    }
+
+    private void evict() {
+        Datacenter datacenter = this.datacenter;
+        this.datacenter = null;
+        borrowed = 0;
+        if (datacenter != null) {
+            close(datacenter);
+        }
+    }
+
+    private void close(Datacenter datacenter) {
+        try {
+            datacenter.close();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.FINE, "Could not close session to " + datacenterUri, e);
+        }
+    }
+
+    private static boolean isOpen(Datacenter datacenter) {
+        try {
+            return datacenter.isOpen();
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Schedules the keep-alive without the scheduler keeping the session alive, so that a session belonging to a
+     * removed cloud stops being validated once it is garbage collected.
+     */
+    private static void scheduleKeepAlive(DatacenterSession session) {
+        final WeakReference<DatacenterSession> ref = new WeakReference<DatacenterSession>(session);
+        final AtomicReference<ScheduledFuture<?>> self = new AtomicReference<ScheduledFuture<?>>();
+        self.set(VirtualizationExecutor.get().getScheduler().scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                final DatacenterSession target = ref.get();
+                if (target == null) {
+                    cancel();
+                    return;
+                }
+                try {
+                    VirtualizationExecutor.get().submit(new FutureTask<Void>(new Callable<Void>() {
+                        public Void call() throws Exception {
+                            if (!target.keepAlive()) {
+                                cancel();
+                            }
+                            return null;
+                        }
+                    }), VirtualDatacenter.MakeConnection.CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                } catch (RejectedExecutionException e) {
+                    LOGGER.log(Level.FINE, "Skipping keep-alive, executor is busy", e);
+                }
+            }
+
+            private void cancel() {
+                ScheduledFuture<?> future = self.get();
+                if (future != null) {
+                    future.cancel(false);
+                }
+            }
+        }, KEEP_ALIVE_SECONDS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Establishes sessions to a datacenter.
+     */
+    interface Connector {
+        /**
+         * Connects through vcc-api's {@link net.java.dev.vcc.api.DatacenterManager}.
+         */
+        Connector DEFAULT = new Connector() {
+            public Datacenter connect(String datacenterUri, String username, String password)
+                    throws IOException, InterruptedException {
+                return VirtualDatacenter.MakeConnection.getConnection(datacenterUri, username, password);
+            }
+        };
+
+        Datacenter connect(String datacenterUri, String username, String password)
+                throws IOException, InterruptedException;
+    }
+}
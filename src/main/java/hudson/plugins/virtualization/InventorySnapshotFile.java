@@ -0,0 +1,87 @@
+package hudson.plugins.virtualization;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Reads and writes the on-disk copy of a datacenter's inventory so that it is available immediately after a restart.
+ * <p/>
+ * The format is line oriented UTF-8 text: a header line naming the format version followed by one computer name per
+ * line. It can be read one line at a time without holding more than the names themselves in memory.
+ */
+final class InventorySnapshotFile {
+
+    private static final String HEADER = "VCC-INVENTORY 1";
+
+    private final File file;
+
+    InventorySnapshotFile(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Reads the computer names.
+     *
+     * @return the names or {@code null} if there is no snapshot or it is in a format this version cannot read.
+     */
+    List<String> read() throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            if (!HEADER.equals(reader.readLine())) {
+                return null;
+            }
+            List<String> result = new ArrayList<String>();
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() > 0) {
+                    result.add(line);
+                }
+            }
+            return result;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Writes the computer names, replacing the previous snapshot only once the new one is complete.
+     */
+    void write(Collection<String> names) throws IOException {
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        File tmp = new File(dir, file.getName() + ".tmp");
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+        try {
+            writer.write(HEADER);
+            writer.write('\n');
+            for (String name : names) {
+                writer.write(name);
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+        if (!tmp.renameTo(file)) {
+            // Windows will not rename over an existing file
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Could not replace " + file);
+            }
+        }
+    }
+}
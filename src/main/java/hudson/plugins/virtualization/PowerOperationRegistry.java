@@ -0,0 +1,271 @@
+package hudson.plugins.virtualization;
+
+import hudson.model.TaskListener;
+import net.java.dev.vcc.api.Computer;
+import net.java.dev.vcc.api.PowerState;
+import net.java.dev.vcc.api.commands.StartComputer;
+import net.java.dev.vcc.api.commands.SuspendComputer;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The power operations in flight against the computers of one {@link VirtualDatacenter}, at most one per computer.
+ * <p/>
+ * A caller asking for the state that an operation in flight is already heading for joins that operation instead of
+ * issuing another command. A caller asking for the opposite state waits for the operation in flight to finish and
+ * then checks the state again, so conflicting requests are applied one after the other in the order they got to
+ * the computer, and a suspend can never overtake the resume it was issued during.
+ * <p/>
+ * A suspend is dropped if someone other than its caller holds the computer when it is about to be issued, including
+ * after waiting for a resume: whoever resumed the computer is using it, so the suspend of a previous user must not
+ * take it away from them.
+ */
+final class PowerOperationRegistry {
+
+    private static final Callable<PowerState> NOOP = new Callable<PowerState>() {
+        public PowerState call() throws Exception {
+            return null;
+        }
+    };
+
+    private final PowerOperationScheduler scheduler;
+    private final DatacenterMetrics metrics;
+    private final PowerStateWatcher watcher;
+    private final PowerStateRecorder recorder;
+
+    private final Map<String, Operation> inFlight = new HashMap<String, Operation>();
+
+    /**
+     * Tells who holds the computers of a datacenter, other than the caller of a suspend.
+     */
+    interface Ownership {
+        /**
+         * Nobody holds any computer.
+         */
+        Ownership NOBODY = new Ownership() {
+            public String getOtherHolder(String name) {
+                return null;
+            }
+        };
+
+        /**
+         * @param name the name of the computer.
+         * @return a description of who other than the caller holds the computer, or {@code null} if nobody does.
+         */
+        String getOtherHolder(String name);
+    }
+
+    /**
+     * @param scheduler the admission control of the datacenter.
+     * @param metrics   the metrics of the datacenter.
+     * @param watcher   the watcher of the datacenter's power states.
+     * @param recorder  where the states the computers are found in or brought to are remembered.
+     */
+    PowerOperationRegistry(PowerOperationScheduler scheduler, DatacenterMetrics metrics, PowerStateWatcher watcher,
+                           PowerStateRecorder recorder) {
+        this.scheduler = scheduler;
+        this.metrics = metrics;
+        this.watcher = watcher;
+        this.recorder = recorder;
+    }
+
+    /**
+     * Brings a computer to a power state and waits until it gets there.
+     *
+     * @param name           the name of the computer.
+     * @param computer       the computer.
+     * @param target         {@link PowerState#RUNNING} or {@link PowerState#SUSPENDED}.
+     * @param source         where the request comes from, for admission control.
+     * @param listener       the log.
+     * @param timeoutMillis  how long to wait for the computer to reach the state.
+     * @param waitingMessage what to log every few seconds while waiting.
+     * @return {@code false} if the computer was already in the state.
+     * @throws IOException if the computer could not be brought to the state in time.
+     */
+    boolean transition(String name, Computer computer, PowerState target, PowerOperationScheduler.Source source,
+                    TaskListener listener, long timeoutMillis, String waitingMessage)
+            throws IOException, InterruptedException {
+        return transition(name, computer, target, source, listener, timeoutMillis, waitingMessage, Ownership.NOBODY);
+    }
+
+    /**
+     * Brings a computer to a power state and waits until it gets there, unless it is a suspend of a computer that
+     * someone other than the caller holds.
+     *
+     * @param ownership who holds the computer, consulted before a suspend is issued.
+     * @return {@code false} if the computer was already in the state, or the suspend was dropped.
+     * @throws IOException if the computer could not be brought to the state in time.
+     * @see #transition(String, Computer, PowerState, PowerOperationScheduler.Source, TaskListener, long, String)
+     */
+    boolean transition(String name, Computer computer, PowerState target, PowerOperationScheduler.Source source,
+                       TaskListener listener, long timeoutMillis, String waitingMessage, Ownership ownership)
+            throws IOException, InterruptedException {
+        Operation operation;
+        while (true) {
+            if (!PowerState.RUNNING.equals(target)) {
+                // checked again after waiting for an operation in flight, which may have been a resume for them
+                String holder = ownership.getOtherHolder(name);
+                if (holder != null) {
+                    listener.getLogger().println("[virtualization] Not suspending " + name + ", it is held by "
+                            + holder);
+                    return false;
+                }
+            }
+            Operation existing;
+            synchronized (this) {
+                existing = inFlight.get(name);
+                if (existing == null) {
+                    operation = new Operation(target);
+                    inFlight.put(name, operation);
+                    break;
+                }
+            }
+            if (existing.target.equals(target)) {
+                listener.getLogger().println("[virtualization] Joining the operation already bringing " + name
+                        + " to " + target);
+                await(existing, name);
+                return true;
+            }
+            listener.getLogger().println("[virtualization] Waiting for the operation bringing " + name + " to "
+                    + existing.target + " to finish first");
+            try {
+                existing.get();
+            } catch (ExecutionException e) {
+                // the state is checked again once we own the computer
+            }
+        }
+        try {
+            boolean changed = perform(name, computer, target, source, listener, timeoutMillis, waitingMessage);
+            operation.complete(target);
+            return changed;
+        } catch (IOException e) {
+            operation.fail(e);
+            throw e;
+        } catch (InterruptedException e) {
+            operation.fail(e);
+            throw e;
+        } catch (RuntimeException e) {
+            operation.fail(e);
+            throw e;
+        } finally {
+            synchronized (this) {
+                inFlight.remove(name);
+            }
+        }
+    }
+
+    private boolean perform(String name, Computer computer, PowerState target,
+                               PowerOperationScheduler.Source source, TaskListener listener, long timeoutMillis,
+                               String waitingMessage) throws IOException, InterruptedException {
+        // another operation may have finished just before this one took over, so ask the computer itself
+        PowerState current = computer.getState();
+        recorder.recordState(name, current);
+        if (isAt(current, target)) {
+            return false;
+        }
+        PowerOperationScheduler.Permit permit = scheduler.acquire(source,
+                (PowerState.RUNNING.equals(target) ? "Start of " : "Suspend of ") + name, listener);
+        long start = System.currentTimeMillis();
+        boolean ok = false;
+        metrics.powerOperationStarted();
+        try {
+            Future<?> command;
+            if (PowerState.RUNNING.equals(target)) {
+                StartComputer startComputer = computer.execute(new StartComputer());
+                command = startComputer;
+            } else {
+                SuspendComputer suspendComputer = computer.execute(new SuspendComputer());
+                command = suspendComputer;
+            }
+            awaitPowerState(computer, command, target, listener, timeoutMillis, waitingMessage);
+            recorder.recordState(name, target);
+            ok = true;
+            return true;
+        } finally {
+            permit.release();
+            if (ok) {
+                metrics.powerOperationFinished(target, System.currentTimeMillis() - start);
+            } else {
+                metrics.powerOperationFailed();
+            }
+        }
+    }
+
+    /**
+     * Waits for a computer to reach the target power state using the datacenter's shared
+     * {@link PowerStateWatcher}. Progress is reported every few seconds and a failure of the power command itself
+     * ends the wait early.
+     */
+    private void awaitPowerState(Computer computer, Future<?> command, PowerState target, TaskListener listener,
+                                 long timeoutMillis, String waitingMessage)
+            throws IOException, InterruptedException {
+        Future<PowerState> state = watcher.watch(computer, target, timeoutMillis, TimeUnit.MILLISECONDS);
+        try {
+            while (true) {
+                try {
+                    state.get(5, TimeUnit.SECONDS);
+                    return;
+                } catch (TimeoutException e) {
+                    if (command.isDone()) {
+                        command.get();
+                    }
+                    listener.getLogger().println(waitingMessage);
+                }
+            }
+        } catch (ExecutionException e) {
+            IOException ioe = new IOException("Could not bring the computer to " + target + ": "
+                    + e.getCause().getMessage());
+            ioe.initCause(e.getCause());
+            throw ioe;
+        } finally {
+            state.cancel(false);
+        }
+    }
+
+    private static void await(Operation operation, String name) throws IOException, InterruptedException {
+        try {
+            operation.get();
+        } catch (ExecutionException e) {
+            IOException ioe = new IOException("Could not bring " + name + " to " + operation.target + ": "
+                    + e.getCause().getMessage());
+            ioe.initCause(e.getCause());
+            throw ioe;
+        }
+    }
+
+    private static boolean isAt(PowerState state, PowerState target) {
+        if (PowerState.RUNNING.equals(target)) {
+            return PowerState.RUNNING.equals(state);
+        }
+        // a computer that is not running does not need suspending
+        return !PowerState.RUNNING.equals(state);
+    }
+
+    /**
+     * A future completed by the caller that owns the operation.
+     */
+    private static final class Operation extends FutureTask<PowerState> {
+        private final PowerState target;
+
+        private Operation(PowerState target) {
+            super(NOOP);
+            this.target = target;
+        }
+
+        private void complete(PowerState state) {
+            set(state);
+        }
+
+        private void fail(Throwable cause) {
+            setException(cause);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package hudson.plugins.virtualization;
+
+import hudson.model.TaskListener;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Admission control for the power operations issued against one {@link VirtualDatacenter}.
+ * <p/>
+ * An operation is admitted once fewer than the maximum number of operations are in flight and the token bucket has a
+ * token. Until then callers queue, ordered first by the priority of where the operation came from and then by
+ * arrival, and are told their position in the queue. This stops a restart or a large trigger fan-out from resuming
+ * every virtual computer on the same storage at once.
+ */
+final class PowerOperationScheduler {
+
+    /**
+     * Where a power operation comes from.
+     */
+    enum Source {
+        /**
+         * Launching a slave, either a configured one or one being provisioned.
+         */
+        LAUNCHER,
+        /**
+         * A virtual computer used by a build wrapper.
+         */
+        BUILD_WRAPPER
+    }
+
+    /**
+     * How often waiting callers are reminded of their position when it has not changed.
+     */
+    private static final long REPORT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final String datacenterUri;
+    private final int maxInFlight;
+    private final double tokensPerMilli;
+    private final double bucketSize;
+    private final Source favoured;
+
+    private final List<Waiter> queue = new ArrayList<Waiter>();
+    private int inFlight = 0;
+    private double tokens;
+    private long lastRefill;
+    private long sequence = 0;
+
+    /**
+     * @param datacenterUri the datacenter, for the log.
+     * @param maxInFlight   the most operations in flight at once, or {@code 0} for no limit.
+     * @param perMinute     the sustained rate of operations per minute, or {@code 0} for no limit.
+     * @param favoured      the source whose operations are admitted first.
+     */
+    PowerOperationScheduler(String datacenterUri, int maxInFlight, int perMinute, Source favoured) {
+        this.datacenterUri = datacenterUri;
+        this.maxInFlight = maxInFlight <= 0 ? Integer.MAX_VALUE : maxInFlight;
+        this.tokensPerMilli = perMinute <= 0 ? 0 : perMinute / 60000.0;
+        // bursts may fill the in flight limit, or a minute's worth of operations if that is smaller
+        this.bucketSize = Math.max(1, Math.min(this.maxInFlight, Math.max(1, perMinute)));
+        this.favoured = favoured;
+        this.tokens = bucketSize;
+        this.lastRefill = System.currentTimeMillis();
+    }
+
+    /**
+     * Waits until a power operation may be issued.
+     *
+     * @param source      where the operation comes from.
+     * @param description what the operation is, for the log.
+     * @param listener    the log to report the queue position to, or {@code null}.
+     * @return the permit, which must be released once the operation is over.
+     */
+    Permit acquire(Source source, String description, TaskListener listener) throws InterruptedException {
+        Waiter waiter;
+        synchronized (this) {
+            waiter = new Waiter(source == favoured ? 0 : 1, sequence++);
+            int index = 0;
+            while (index < queue.size() && queue.get(index).compareTo(waiter) < 0) {
+                index++;
+            }
+            queue.add(index, waiter);
+            int lastPosition = -1;
+            long lastReport = 0;
+            try {
+                while (true) {
+                    refill();
+                    int position = queue.indexOf(waiter);
+                    if (position == 0 && inFlight < maxInFlight && (tokensPerMilli == 0 || tokens >= 1)) {
+                        break;
+                    }
+                    long now = System.currentTimeMillis();
+                    if (listener != null && (position != lastPosition || now - lastReport >= REPORT_MILLIS)) {
+                        listener.getLogger().println("[virtualization] " + description + " is number "
+                                + (position + 1) + " in the queue for power operations on " + datacenterUri
+                                + " (" + inFlight + " in flight)");
+                        lastPosition = position;
+                        lastReport = now;
+                    }
+                    long timeout = REPORT_MILLIS;
+                    if (position == 0 && inFlight < maxInFlight) {
+                        // only waiting for the bucket to refill
+                        timeout = Math.max(1, (long) Math.ceil((1 - tokens) / tokensPerMilli));
+                    }
+                    wait(timeout);
+                }
+            } finally {
+                queue.remove(waiter);
+                // the next waiter may now be at the head of the queue
+                notifyAll();
+            }
+            if (tokensPerMilli != 0) {
+                tokens -= 1;
+            }
+            inFlight++;
+        }
+        return new Permit();
+    }
+
+    /**
+     * Returns the number of callers waiting to issue a power operation.
+     */
+    synchronized int getQueueLength() {
+        return queue.size();
+    }
+
+    private void refill() {
+        long now = System.currentTimeMillis();
+        if (tokensPerMilli != 0) {
+            tokens = Math.min(bucketSize, tokens + (now - lastRefill) * tokensPerMilli);
+        }
+        lastRefill = now;
+    }
+
+    private synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * The right to have one power operation in flight.
+     */
+    final class Permit {
+        private boolean released = false;
+
+        private Permit() {
+        }
+
+        /**
+         * Ends the operation. Releasing a permit more than once has no further effect.
+         */
+        void release() {
+            synchronized (this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+            }
+            PowerOperationScheduler.this.release();
+        }
+    }
+
+    private static final class Waiter implements Comparable<Waiter> {
+        private final int priority;
+        private final long sequence;
+
+        private Waiter(int priority, long sequence) {
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        public int compareTo(Waiter o) {
+            if (priority != o.priority) {
+                return priority < o.priority ? -1 : 1;
+            }
+            return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package hudson.plugins.virtualization;
+
+import net.java.dev.vcc.api.PowerState;
+
+/**
+ * Remembers the power states that computers were seen in, as their last known state in the inventory.
+ */
+interface PowerStateRecorder {
+
+    /**
+     * Records nothing.
+     */
+    PowerStateRecorder NONE = new PowerStateRecorder() {
+        public void recordState(String name, PowerState state) {
+        }
+    };
+
+    /**
+     * Records that a computer was seen in a power state.
+     *
+     * @param name  the name of the computer.
+     * @param state the state it was seen in.
+     */
+    void recordState(String name, PowerState state);
+}
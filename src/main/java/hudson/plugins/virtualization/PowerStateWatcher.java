@@ -0,0 +1,254 @@
+package hudson.plugins.virtualization;
+
+import net.java.dev.vcc.api.Computer;
+import net.java.dev.vcc.api.PowerState;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches the power state of the computers in a {@link VirtualDatacenter} on behalf of any number of waiters.
+ * <p/>
+ * A single periodic task on the {@link VirtualizationExecutor} scheduler hands a poll of every watched computer to a
+ * datacenter worker once per tick, so the number of threads and datacenter calls does not grow with the number of
+ * builds waiting for the same (or different) computers. The scheduler itself never talks to the datacenter, and a
+ * tick is skipped while the previous poll is still running, so a datacenter that stops answering holds up one worker
+ * at most.
+ */
+public final class PowerStateWatcher {
+
+    private static final Logger LOGGER = Logger.getLogger(PowerStateWatcher.class.getName());
+
+    /**
+     * How often the watched computers are polled.
+     */
+    private static final long POLL_MILLIS =
+            Long.getLong(PowerStateWatcher.class.getName() + ".pollMillis", 2000L);
+
+    /**
+     * How many polls of a computer in a row may fail before its waiters are failed.
+     */
+    private static final int MAX_CONSECUTIVE_ERRORS =
+            Integer.getInteger(PowerStateWatcher.class.getName() + ".maxConsecutiveErrors", 5);
+
+    /**
+     * How long a waiter waits for a power state transition unless it asks for something else.
+     */
+    public static final long DEFAULT_TIMEOUT_SECONDS =
+            Long.getLong(PowerStateWatcher.class.getName() + ".timeoutSeconds", 600L);
+
+    /**
+     * How long a poll of the watched computers may run before it is cancelled.
+     */
+    private static final long POLL_TIMEOUT_SECONDS =
+            Long.getLong(PowerStateWatcher.class.getName() + ".pollTimeoutSeconds", 60L);
+
+    private final String datacenterUri;
+
+    private final PowerStateRecorder recorder;
+
+    private final Map<Computer, List<PowerStateFuture>> waiters = new HashMap<Computer, List<PowerStateFuture>>();
+
+    /**
+     * How many polls of each watched computer have failed in a row.
+     */
+    private final Map<Computer, Integer> errors = new HashMap<Computer, Integer>();
+
+    private ScheduledFuture<?> ticker = null;
+
+    private Future<?> polling = null;
+
+    /**
+     * @param datacenterUri the datacenter, for logging.
+     * @param recorder      where the states seen by the polls are remembered.
+     */
+    PowerStateWatcher(String datacenterUri, PowerStateRecorder recorder) {
+        this.datacenterUri = datacenterUri;
+        this.recorder = recorder;
+    }
+
+    /**
+     * Waits for a computer to reach the target power state.
+     *
+     * @param computer the computer to watch.
+     * @param target   the power state to wait for.
+     * @param timeout  how long to wait before the returned future fails with a {@link TimeoutException}.
+     * @param unit     the unit of {@code timeout}.
+     * @return a future that completes with the target state once the computer reaches it.
+     */
+    public Future<PowerState> watch(Computer computer, PowerState target, long timeout, TimeUnit unit) {
+        PowerStateFuture future =
+                new PowerStateFuture(computer.getName(), target, System.currentTimeMillis() + unit.toMillis(timeout));
+        synchronized (this) {
+            List<PowerStateFuture> list = waiters.get(computer);
+            if (list == null) {
+                list = new ArrayList<PowerStateFuture>();
+                waiters.put(computer, list);
+            }
+            list.add(future);
+            if (ticker == null) {
+                ticker = VirtualizationExecutor.get().getScheduler().scheduleWithFixedDelay(new Runnable() {
+                    public void run() {
+                        poll();
+                    }
+                }, 0, POLL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+        return future;
+    }
+
+    /**
+     * Returns the number of computers currently being watched.
+     */
+    public synchronized int getWatchedCount() {
+        return waiters.size();
+    }
+
+    /**
+     * Fails the waiters whose time is up and hands a poll to a datacenter worker unless the last one is still
+     * running.
+     */
+    private synchronized void poll() {
+        long now = System.currentTimeMillis();
+        for (List<PowerStateFuture> list : waiters.values()) {
+            for (PowerStateFuture future : list) {
+                if (now > future.deadline) {
+                    // even if the polls themselves are stuck
+                    future.fail(new TimeoutException("Virtual computer " + future.name + " did not reach state "
+                            + future.target + " in time"));
+                }
+            }
+        }
+        if (polling != null && !polling.isDone()) {
+            return;
+        }
+        try {
+            polling = VirtualizationExecutor.get().submit(new FutureTask<Void>(new Callable<Void>() {
+                public Void call() throws Exception {
+                    tick();
+                    return null;
+                }
+            }), POLL_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (RejectedExecutionException e) {
+            LOGGER.log(Level.FINE, "Skipping a power state poll of " + datacenterUri + ", the executor is busy", e);
+        }
+    }
+
+    private void tick() {
+        Map<Computer, List<PowerStateFuture>> snapshot;
+        synchronized (this) {
+            snapshot = new HashMap<Computer, List<PowerStateFuture>>();
+            for (Map.Entry<Computer, List<PowerStateFuture>> entry : waiters.entrySet()) {
+                snapshot.put(entry.getKey(), new ArrayList<PowerStateFuture>(entry.getValue()));
+            }
+        }
+        long now = System.currentTimeMillis();
+        for (Map.Entry<Computer, List<PowerStateFuture>> entry : snapshot.entrySet()) {
+            PowerState state;
+            try {
+                state = entry.getKey().getState();
+            } catch (RuntimeException e) {
+                if (recordError(entry.getKey()) < MAX_CONSECUTIVE_ERRORS) {
+                    // most likely a passing problem with the datacenter, try again on the next tick
+                    LOGGER.log(Level.FINE, "Could not query power state in " + datacenterUri, e);
+                    for (PowerStateFuture future : entry.getValue()) {
+                        if (now > future.deadline) {
+                            future.fail(e);
+                        }
+                    }
+                } else {
+                    LOGGER.log(Level.WARNING, "Giving up on the power state of " + entry.getValue().get(0).name
+                            + " in " + datacenterUri + " after " + MAX_CONSECUTIVE_ERRORS + " failed queries", e);
+                    for (PowerStateFuture future : entry.getValue()) {
+                        future.fail(e);
+                    }
+                }
+                continue;
+            }
+            synchronized (this) {
+                errors.remove(entry.getKey());
+            }
+            recorder.recordState(entry.getValue().get(0).name, state);
+            for (PowerStateFuture future : entry.getValue()) {
+                if (future.target.equals(state)) {
+                    future.complete(state);
+                } else if (now > future.deadline) {
+                    future.fail(new TimeoutException("Virtual computer " + future.name + " did not reach state "
+                            + future.target + " in time, last state was " + state));
+                }
+            }
+        }
+        synchronized (this) {
+            for (Iterator<List<PowerStateFuture>> i = waiters.values().iterator(); i.hasNext();) {
+                List<PowerStateFuture> list = i.next();
+                for (Iterator<PowerStateFuture> j = list.iterator(); j.hasNext();) {
+                    if (j.next().isDone()) {
+                        j.remove();
+                    }
+                }
+                if (list.isEmpty()) {
+                    i.remove();
+                }
+            }
+            errors.keySet().retainAll(waiters.keySet());
+            if (waiters.isEmpty() && ticker != null) {
+                ticker.cancel(false);
+                ticker = null;
+            }
+        }
+    }
+
+    /**
+     * Counts a failed poll of a computer.
+     *
+     * @return how many polls of the computer have now failed in a row.
+     */
+    private synchronized int recordError(Computer computer) {
+        Integer count = errors.get(computer);
+        count = count == null ? 1 : count + 1;
+        errors.put(computer, count);
+        return count;
+    }
+
+    /**
+     * A future that is completed by the watcher rather than by running a task.
+     */
+    private static final class PowerStateFuture extends FutureTask<PowerState> {
+        private static final Callable<PowerState> NOOP = new Callable<PowerState>() {
+            public PowerState call() throws Exception {
+                throw new IllegalStateException("Completed by the watcher");
+            }
+        };
+
+        private final String name;
+        private final PowerState target;
+        private final long deadline;
+
+        private PowerStateFuture(String name, PowerState target, long deadline) {
+            super(NOOP);
+            this.name = name;
+            this.target = target;
+            this.deadline = deadline;
+        }
+
+        private void complete(PowerState state) {
+            set(state);
+        }
+
+        private void fail(Throwable t) {
+            setException(t);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package hudson.plugins.virtualization;
+
+import hudson.ExtensionPoint;
+import hudson.model.Describable;
+import hudson.model.Descriptor;
+import hudson.model.Hudson;
+import hudson.model.TaskListener;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Decides when a resumed virtual computer is ready for the secondary launcher.
+ * <p/>
+ * {@link VirtualComputerLauncher} always waits for the virtual computer to be running, then runs each configured probe
+ * in turn before handing over to the secondary launcher. All probes share the launcher's readiness deadline.
+ */
+public abstract class ReadinessProbe implements Describable<ReadinessProbe>, ExtensionPoint {
+
+    /**
+     * Waits for the guest to be ready.
+     *
+     * @param virtualComputer the virtual computer being launched.
+     * @param deadline        the time ({@link System#currentTimeMillis()}) by which the guest must be ready.
+     * @param listener        the launch log.
+     * @throws IOException if the guest is not ready by the deadline.
+     */
+    public abstract void await(VirtualComputer virtualComputer, long deadline, TaskListener listener)
+            throws IOException, InterruptedException;
+
+    @SuppressWarnings("unchecked")
+    public Descriptor<ReadinessProbe> getDescriptor() {
+        return Hudson.getInstance().getDescriptor(getClass());
+    }
+
+    /**
+     * Returns the descriptors of all the registered probes.
+     */
+    public static List<Descriptor<ReadinessProbe>> all() {
+        return Hudson.getInstance().getDescriptorList(ReadinessProbe.class);
+    }
+}
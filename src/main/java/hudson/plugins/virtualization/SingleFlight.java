@@ -0,0 +1,74 @@
+package hudson.plugins.virtualization;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesces concurrent calls for the same key into a single call.
+ * <p/>
+ * The first caller for a key makes the call on its own thread, callers arriving while it is in flight wait for its
+ * result, and callers arriving within the freshness window after it succeeded reuse that result. Failures are never
+ * reused.
+ */
+final class SingleFlight<K, V> {
+
+    private final long freshMillis;
+
+    private final ConcurrentMap<K, Flight> flights = new ConcurrentHashMap<K, Flight>();
+
+    /**
+     * @param freshMillis how long a successful result is shared with later callers.
+     */
+    SingleFlight(long freshMillis) {
+        this.freshMillis = freshMillis;
+    }
+
+    /**
+     * Returns the result of the in flight or recent call for the key, making the call if there is none.
+     *
+     * @throws ExecutionException if the call failed.
+     */
+    V get(K key, Callable<V> call) throws ExecutionException, InterruptedException {
+        while (true) {
+            Flight existing = flights.get(key);
+            if (existing != null && existing.isReusable()) {
+                return existing.get();
+            }
+            Flight flight = new Flight(key, call);
+            boolean ours = existing == null
+                    ? flights.putIfAbsent(key, flight) == null
+                    : flights.replace(key, existing, flight);
+            if (ours) {
+                flight.run();
+                return flight.get();
+            }
+        }
+    }
+
+    private final class Flight extends FutureTask<V> {
+        private final K key;
+        private volatile long completed = 0;
+
+        private Flight(K key, Callable<V> callable) {
+            super(callable);
+            this.key = key;
+        }
+
+        @Override
+        protected void done() {
+            completed = System.currentTimeMillis();
+            try {
+                get();
+            } catch (Exception e) {
+                flights.remove(key, this);
+            }
+        }
+
+        private boolean isReusable() {
+            return !isDone() || System.currentTimeMillis() - completed < freshMillis;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package hudson.plugins.virtualization;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Suspends the virtual computers of finished builds in the background.
+ * <p/>
+ * Until a background suspend has been confirmed the virtual computers it covers remain claimed: a build that wants to
+ * use one of them waits for the suspend to finish before starting it again, so a resume can never race a suspend.
+ * Failures are recorded on the build that owned the virtual computers, as it completes if it is still running.
+ */
+final class SuspendOrchestrator {
+
+    private static final Logger LOGGER = Logger.getLogger(SuspendOrchestrator.class.getName());
+
+    private static final SuspendOrchestrator INSTANCE = new SuspendOrchestrator();
+
+    private final ConcurrentMap<VirtualComputer, Future<String>> pending =
+            new ConcurrentHashMap<VirtualComputer, Future<String>>();
+
+    /**
+     * Failures of builds that were still running when their suspend failed, guarded by {@code this}.
+     */
+    private final Map<AbstractBuild<?, ?>, List<String>> unrecorded = new HashMap<AbstractBuild<?, ?>, List<String>>();
+
+    private SuspendOrchestrator() {
+    }
+
+    static SuspendOrchestrator get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Runs a suspend in the background.
+     *
+     * @param build            the build that used the virtual computers.
+     * @param virtualComputers the virtual computers being suspended.
+     * @param suspend          the suspend, returning {@code null} on success or a description of the failure.
+     * @return {@code false} if the suspend could not be queued.
+     */
+    boolean submit(final AbstractBuild<?, ?> build, final Collection<VirtualComputer> virtualComputers,
+                   Callable<String> suspend) {
+        FutureTask<String> task = new FutureTask<String>(suspend) {
+            @Override
+            protected void done() {
+                for (VirtualComputer virtualComputer : virtualComputers) {
+                    pending.remove(virtualComputer, this);
+                }
+                String failure;
+                try {
+                    failure = get();
+                } catch (InterruptedException e) {
+                    failure = "Interrupted while suspending";
+                } catch (ExecutionException e) {
+                    failure = String.valueOf(e.getCause());
+                } catch (RuntimeException e) {
+                    failure = String.valueOf(e);
+                }
+                if (failure != null) {
+                    recordFailure(build, failure);
+                }
+            }
+        };
+        for (VirtualComputer virtualComputer : virtualComputers) {
+            pending.put(virtualComputer, task);
+        }
+        try {
+            VirtualizationExecutor.get().submitPowerOperation(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            for (VirtualComputer virtualComputer : virtualComputers) {
+                pending.remove(virtualComputer, task);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Waits for any background suspends of the virtual computers to finish.
+     */
+    void awaitPending(Collection<VirtualComputer> virtualComputers, TaskListener listener)
+            throws InterruptedException {
+        for (VirtualComputer virtualComputer : virtualComputers) {
+            Future<String> future = pending.get(virtualComputer);
+            if (future == null) {
+                continue;
+            }
+            listener.getLogger().println("[virtualization] Waiting for the background suspend of virtual computer "
+                    + virtualComputer.getName() + " to finish");
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                // recorded on the build that started it
+            }
+        }
+    }
+
+    /**
+     * Records a failure on the build. While the build is still running the failure is kept until it completes, and
+     * its own save writes it, rather than this thread saving the build behind Hudson's back.
+     */
+    private void recordFailure(AbstractBuild<?, ?> build, String failure) {
+        LOGGER.log(Level.WARNING, "Could not suspend the virtual computers of {0}: {1}",
+                new Object[]{build, failure});
+        synchronized (this) {
+            if (build.isBuilding()) {
+                List<String> failures = unrecorded.get(build);
+                if (failures == null) {
+                    failures = new ArrayList<String>();
+                    unrecorded.put(build, failures);
+                }
+                failures.add(failure);
+                return;
+            }
+        }
+        synchronized (build) {
+            build.addAction(new VirtualComputerSuspendFailedAction(failure));
+            try {
+                build.save();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not record the failed suspend on " + build, e);
+            }
+        }
+    }
+
+    /**
+     * Adds the failures kept for a build as it completes, before Hudson writes its record.
+     */
+    private void completed(AbstractBuild<?, ?> build) {
+        List<String> failures;
+        synchronized (this) {
+            failures = unrecorded.remove(build);
+        }
+        if (failures != null) {
+            for (String failure : failures) {
+                build.addAction(new VirtualComputerSuspendFailedAction(failure));
+            }
+        }
+    }
+
+    /**
+     * Hands completing builds to the orchestrator.
+     */
+    @Extension
+    public static final class CompletedListener extends RunListener<AbstractBuild> {
+        public CompletedListener() {
+            super(AbstractBuild.class);
+        }
+
+        @Override
+        public void onCompleted(AbstractBuild build, TaskListener listener) {
+            get().completed(build);
+        }
+    }
+}
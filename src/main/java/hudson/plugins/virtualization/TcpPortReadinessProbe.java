@@ -0,0 +1,94 @@
+package hudson.plugins.virtualization;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Descriptor;
+import hudson.model.TaskListener;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Random;
+
+/**
+ * Waits until the guest accepts TCP connections on a port, retrying with exponential backoff and jitter.
+ */
+public class TcpPortReadinessProbe extends ReadinessProbe {
+
+    private static final long INITIAL_BACKOFF_MILLIS = 500;
+
+    private static final long MAX_BACKOFF_MILLIS = 30000;
+
+    private static final int MAX_CONNECT_TIMEOUT_MILLIS = 5000;
+
+    private static final Random RANDOM = new Random();
+
+    private final String host;
+    private final int port;
+
+    @DataBoundConstructor
+    public TcpPortReadinessProbe(String host, int port) {
+        this.host = Util.fixEmptyAndTrim(host);
+        this.port = port <= 0 ? 22 : port;
+    }
+
+    /**
+     * The host to probe, or {@code null} to use the name of the virtual computer.
+     */
+    public String getHost() {
+        return host;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    @Override
+    public void await(VirtualComputer virtualComputer, long deadline, TaskListener listener)
+            throws IOException, InterruptedException {
+        String target = host == null ? virtualComputer.getName() : host;
+        listener.getLogger().println("Waiting for " + target + ":" + port + " to accept connections");
+        long backoff = INITIAL_BACKOFF_MILLIS;
+        int attempts = 0;
+        while (true) {
+            attempts++;
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                throw new IOException(target + ":" + port + " did not accept connections after " + attempts
+                        + " attempts");
+            }
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(target, port),
+                        (int) Math.min(MAX_CONNECT_TIMEOUT_MILLIS, remaining));
+                listener.getLogger().println(target + ":" + port + " accepted a connection after " + attempts
+                        + " attempts");
+                return;
+            } catch (IOException e) {
+                // not listening yet
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+            // equal jitter: at least half the backoff, plus a random share of the other half so that many slaves
+            // resumed together do not probe in lock step
+            long sleep = Math.min(backoff / 2 + (long) (RANDOM.nextDouble() * backoff / 2),
+                    deadline - System.currentTimeMillis());
+            if (sleep > 0) {
+                Thread.sleep(sleep);
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+        }
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<ReadinessProbe> {
+        public String getDisplayName() {
+            return "Wait for a TCP port";
+        }
+    }
+}
@@ -24,8 +24,14 @@ public class VirtualComputer implements Serializable, Comparable<VirtualComputer
         return name;
     }
 
+    /**
+     * Returns the configured datacenter holding this computer. Saving the cloud configuration replaces the
+     * datacenters, so this looks up the current one by URI rather than returning the one this computer was found in,
+     * whose session is closed once it is retired.
+     */
     public VirtualDatacenter getDatacenter() {
-        return datacenter;
+        VirtualDatacenter configured = VirtualDatacenter.getConfigured(datacenter.getDatacenterUri());
+        return configured == null ? datacenter : configured;
     }
 
     public String getComputerName() {
@@ -47,7 +53,7 @@ public class VirtualComputer implements Serializable, Comparable<VirtualComputer
 
         VirtualComputer that = (VirtualComputer) o;
 
-        if (datacenter != null ? !datacenter.equals(that.datacenter) : that.datacenter != null) {
+        if (!getDatacenterUri().equals(that.getDatacenterUri())) {
             return false;
         }
         if (name != null ? !name.equals(that.name) : that.name != null) {
@@ -60,7 +66,7 @@ public class VirtualComputer implements Serializable, Comparable<VirtualComputer
     @Override
     public int hashCode() {
         int result = name != null ? name.hashCode() : 0;
-        result = 31 * result + (datacenter != null ? datacenter.hashCode() : 0);
+        result = 31 * result + getDatacenterUri().hashCode();
         return result;
     }
 
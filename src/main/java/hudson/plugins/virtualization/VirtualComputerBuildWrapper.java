@@ -3,157 +3,628 @@ package hudson.plugins.virtualization;
 import hudson.Extension;
 import hudson.Functions;
 import hudson.Launcher;
+import hudson.Util;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
 import hudson.model.Descriptor;
+import hudson.model.Executor;
 import hudson.model.Hudson;
+import hudson.model.Item;
+import hudson.model.Project;
+import hudson.model.Queue;
 import hudson.model.Resource;
 import hudson.model.ResourceActivity;
 import hudson.model.ResourceList;
+import hudson.model.TaskListener;
 import hudson.slaves.Cloud;
 import hudson.slaves.ComputerLauncher;
 import hudson.tasks.BuildWrapper;
+import hudson.util.FormValidation;
+import hudson.util.StreamTaskListener;
 import net.java.dev.vcc.api.Computer;
-import net.java.dev.vcc.api.Datacenter;
 import net.java.dev.vcc.api.PowerState;
-import net.java.dev.vcc.api.commands.StartComputer;
-import net.java.dev.vcc.api.commands.SuspendComputer;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A virtual computer that is used as a build resource.
  */
 public class VirtualComputerBuildWrapper extends BuildWrapper implements ResourceActivity {
+    /**
+     * The number of power operations issued concurrently when the wrapper does not specify a limit.
+     */
+    private static final int DEFAULT_MAX_CONCURRENT_POWER_OPERATIONS = 4;
+
+    /**
+     * How long a build waits for its cancelled power operations to stop before it gives up on them.
+     */
+    private static final long CANCEL_TIMEOUT_SECONDS =
+            Long.getLong(VirtualComputerBuildWrapper.class.getName() + ".cancelTimeoutSeconds", 60);
+
     private final List<VirtualComputerResource> resources;
+    private final List<VirtualComputerPoolResource> pools;
+    private final int maxConcurrentPowerOperations;
+    private final boolean asyncTeardown;
+    private final boolean preResume;
 
     @DataBoundConstructor
-    public VirtualComputerBuildWrapper(VirtualComputerResource[] resources)
+    public VirtualComputerBuildWrapper(VirtualComputerResource[] resources, VirtualComputerPoolResource[] pools,
+                                       int maxConcurrentPowerOperations, boolean asyncTeardown,
+                                       boolean preResume)
             throws
             Descriptor.FormException, IOException {
-        this.resources = Collections.unmodifiableList(new ArrayList<VirtualComputerResource>(Arrays.asList(resources)));
+        this.resources = resources == null
+                ? Collections.<VirtualComputerResource>emptyList()
+                : Collections.unmodifiableList(new ArrayList<VirtualComputerResource>(Arrays.asList(resources)));
+        this.pools = pools == null || pools.length == 0
+                ? null
+                : Collections.unmodifiableList(new ArrayList<VirtualComputerPoolResource>(Arrays.asList(pools)));
+        this.maxConcurrentPowerOperations = maxConcurrentPowerOperations;
+        this.asyncTeardown = asyncTeardown;
+        this.preResume = preResume;
     }
 
     public VirtualComputerResource[] getResources() {
         return resources.toArray(new VirtualComputerResource[resources.size()]);
     }
 
+    /**
+     * The pools from which the build leases one virtual computer each.
+     */
+    public VirtualComputerPoolResource[] getPools() {
+        List<VirtualComputerPoolResource> pools = getPoolList();
+        return pools.toArray(new VirtualComputerPoolResource[pools.size()]);
+    }
+
+    private List<VirtualComputerPoolResource> getPoolList() {
+        return pools == null ? Collections.<VirtualComputerPoolResource>emptyList() : pools;
+    }
+
+    /**
+     * Whether the virtual computers are suspended in the background once the build is done with them, rather than
+     * holding the executor until they have been suspended.
+     */
+    public boolean isAsyncTeardown() {
+        return asyncTeardown;
+    }
+
+    /**
+     * Whether the virtual computers are resumed while the build is still waiting in the queue.
+     */
+    public boolean isPreResume() {
+        return preResume;
+    }
+
+    public int getMaxConcurrentPowerOperations() {
+        return maxConcurrentPowerOperations <= 0 ? DEFAULT_MAX_CONCURRENT_POWER_OPERATIONS
+                : maxConcurrentPowerOperations;
+    }
+
     @Override
     public Environment setUp(AbstractBuild abstractBuild, Launcher launcher, BuildListener listener)
             throws IOException, InterruptedException {
-        class EnvironmentImpl extends Environment {
-            @Override
-            public boolean tearDown(AbstractBuild abstractBuild, BuildListener listener)
-                    throws IOException, InterruptedException {
-                boolean failed = false;
-                for (VirtualComputerResource resource : resources) {
-                    VirtualComputer virtualComputer = resource.getVirtualComputer();
-                    if (virtualComputer == null) {
-                        continue;
-                    }
-                    String name = virtualComputer.getName();
-                    Datacenter datacenter = virtualComputer.getDatacenter().getConnection();
-                    for (Computer c : datacenter.getAllComputers()) {
-                        if (virtualComputer.getName().equals(c.getName())) {
-                            listener.getLogger()
-                                    .println("[virtualization] Virtual computer " + name + " is in state " + c
-                                            .getState());
-                            if (PowerState.RUNNING.equals(c.getState())) {
-                                listener.getLogger()
-                                        .println("[virtualization] Suspending virtual computer " + name);
-                                try {
-                                    SuspendComputer future = c.execute(new SuspendComputer());
-                                    while (!PowerState.SUSPENDED.equals(c.getState())) {
-                                        try {
-                                            future.get(5, TimeUnit.SECONDS);
-                                        } catch (TimeoutException e) {
-                                            listener.getLogger().println(
-                                                    "[virtualization] Waiting for virtual computer " + name
-                                                            + " to suspend...");
-                                        }
-                                    }
-                                    listener.getLogger()
-                                            .println("[virtualization] Virtual computer " + name + " suspended");
-                                } catch (ExecutionException e) {
-                                    listener
-                                            .error("[virtualization] Could not suspend virtual computer {0}", name);
-                                    e.printStackTrace(listener.getLogger());
-                                    failed = true;
-                                }
-                            } else {
-                                listener.getLogger()
-                                        .println("[virtualization] Virtual computer " + name + " is already suspended");
+        List<VirtualComputer> virtualComputers = new ArrayList<VirtualComputer>();
+        for (VirtualComputerResource resource : resources) {
+            VirtualComputer virtualComputer = resource.resolve();
+            if (virtualComputer == null) {
+                listener.fatalError("[virtualization] There is no virtual computer named {0} in {1}",
+                        resource.getComputerName(), resource.getDatacenterUri());
+                return null;
+            }
+            virtualComputers.add(virtualComputer);
+        }
+        // the fixed virtual computers are claimed in the lease manager too, so that no pool hands them out while
+        // this build uses them
+        List<VirtualComputer> held = claimAll(virtualComputers, abstractBuild, listener);
+        List<VirtualComputer> leased;
+        boolean started = false;
+        try {
+            leased = leaseAll(abstractBuild, listener);
+            held.addAll(leased);
+            virtualComputers.addAll(leased);
+            SuspendOrchestrator.get().awaitPending(virtualComputers, listener);
+            started = startAll(virtualComputers, abstractBuild.getFullDisplayName(), listener);
+        } finally {
+            if (!started) {
+                releaseAll(held);
+            }
+        }
+        if (!started) {
+            return null;
+        }
+        return new EnvironmentImpl(virtualComputers, leased, held);
+    }
+
+    /**
+     * Claims the fixed virtual computers in the lease manager, waiting for any of them that a pool has leased to
+     * another build. If this is interrupted, the virtual computers already claimed by this call are released.
+     */
+    private List<VirtualComputer> claimAll(List<VirtualComputer> virtualComputers, AbstractBuild<?, ?> build,
+                                           BuildListener listener) throws InterruptedException {
+        List<VirtualComputer> claimed = new ArrayList<VirtualComputer>();
+        boolean ok = false;
+        try {
+            for (VirtualComputer virtualComputer : virtualComputers) {
+                VirtualComputerLeaseManager.get().claim(virtualComputer, build.getFullDisplayName(), listener);
+                claimed.add(virtualComputer);
+            }
+            ok = true;
+        } finally {
+            if (!ok) {
+                releaseAll(claimed);
+            }
+        }
+        return claimed;
+    }
+
+    /**
+     * Leases one member from each of the pools. If any pool cannot provide a member, the members already leased by
+     * this call are released.
+     */
+    private List<VirtualComputer> leaseAll(AbstractBuild<?, ?> build, BuildListener listener)
+            throws IOException, InterruptedException {
+        List<VirtualComputer> leased = new ArrayList<VirtualComputer>();
+        boolean ok = false;
+        try {
+            for (VirtualComputerPoolResource pool : getPoolList()) {
+                VirtualDatacenter datacenter = pool.getDatacenter();
+                if (datacenter == null) {
+                    throw new IOException("No datacenter is configured for " + pool.getDatacenterUri());
+                }
+                VirtualComputer virtualComputer = VirtualComputerLeaseManager.get()
+                        .lease(datacenter, pool.getNamePattern(), build.getFullDisplayName(), listener);
+                listener.getLogger().println("[virtualization] Leased virtual computer " + virtualComputer.getName()
+                        + " from the pool " + pool.getNamePattern());
+                leased.add(virtualComputer);
+            }
+            ok = true;
+        } finally {
+            if (!ok) {
+                releaseAll(leased);
+            }
+        }
+        return leased;
+    }
+
+    private static void releaseAll(List<VirtualComputer> held) {
+        for (VirtualComputer virtualComputer : held) {
+            VirtualComputerLeaseManager.get().release(virtualComputer);
+        }
+    }
+
+    /**
+     * Returns the fixed virtual computers of the builds that are running.
+     */
+    static Set<VirtualComputer> getInUse() {
+        Set<VirtualComputer> result = new HashSet<VirtualComputer>();
+        for (hudson.model.Computer computer : Hudson.getInstance().getComputers()) {
+            for (Executor executor : computer.getExecutors()) {
+                Queue.Executable executable = executor.getCurrentExecutable();
+                if (executable instanceof AbstractBuild) {
+                    for (VirtualComputerBuildWrapper wrapper
+                            : getWrappers(((AbstractBuild<?, ?>) executable).getProject())) {
+                        for (VirtualComputerResource resource : wrapper.getResources()) {
+                            VirtualComputer virtualComputer = resource.getVirtualComputer();
+                            if (virtualComputer != null) {
+                                result.add(virtualComputer);
                             }
                         }
                     }
                 }
-                return !failed;
             }
         }
-        boolean failed = false;
-        for (VirtualComputerResource resource : resources) {
-            VirtualComputer virtualComputer = resource.getVirtualComputer();
-            if (virtualComputer == null) {
-                continue;
+        return result;
+    }
+
+    /**
+     * Returns the virtual computer build wrappers of a project.
+     */
+    static Set<VirtualComputerBuildWrapper> getWrappers(Object task) {
+        Set<VirtualComputerBuildWrapper> result = new HashSet<VirtualComputerBuildWrapper>();
+        if (task instanceof Project) {
+            for (BuildWrapper wrapper : ((Project<?, ?>) task).getBuildWrappers().values()) {
+                if (wrapper instanceof VirtualComputerBuildWrapper) {
+                    result.add((VirtualComputerBuildWrapper) wrapper);
+                }
             }
-            Datacenter datacenter = virtualComputer.getDatacenter().getConnection();
-            boolean found = false;
-            String name = virtualComputer.getName();
-            for (Computer c : datacenter.getAllComputers()) {
-                if (name.equals(c.getName())) {
-                    found = true;
-                    listener.getLogger()
-                            .println("[virtualization] Virtual computer " + name + " is in state " + c.getState());
-                    if (!PowerState.RUNNING.equals(c.getState())) {
-                        listener.getLogger().println("[virtualization] Starting virtual computer " + name);
-                        try {
-                            StartComputer future = c.execute(new StartComputer());
-                            while (!PowerState.RUNNING.equals(c.getState())) {
+        }
+        return result;
+    }
+
+    private class EnvironmentImpl extends Environment {
+        private final List<VirtualComputer> virtualComputers;
+        private final List<VirtualComputer> leased;
+        /**
+         * The virtual computers held in the lease manager, both the fixed ones and those leased from pools.
+         */
+        private final List<VirtualComputer> held;
+
+        private EnvironmentImpl(List<VirtualComputer> virtualComputers, List<VirtualComputer> leased,
+                                List<VirtualComputer> held) {
+            this.virtualComputers = virtualComputers;
+            this.leased = leased;
+            this.held = held;
+        }
+
+        @Override
+        public void buildEnvVars(Map<String, String> env) {
+            for (int i = 0; i < leased.size(); i++) {
+                env.put("VIRTUAL_COMPUTER_POOL_" + i, leased.get(i).getName());
+            }
+        }
+
+        @Override
+        public boolean tearDown(AbstractBuild abstractBuild, BuildListener listener)
+                throws IOException, InterruptedException {
+            final String holder = abstractBuild.getFullDisplayName();
+            if (asyncTeardown && !virtualComputers.isEmpty()) {
+                boolean queued = SuspendOrchestrator.get().submit(abstractBuild, virtualComputers,
+                        new Callable<String>() {
+                            public String call() throws Exception {
                                 try {
-                                    future.get(5, TimeUnit.SECONDS);
-                                } catch (TimeoutException e) {
-                                    listener.getLogger().println(
-                                            "[virtualization] Waiting for virtual computer " + name + " to start...");
+                                    ByteArrayOutputStream log = new ByteArrayOutputStream();
+                                    if (suspendAll(virtualComputers, holder, new StreamTaskListener(log))) {
+                                        return null;
+                                    }
+                                    return log.toString();
+                                } finally {
+                                    releaseAll(held);
                                 }
                             }
-                            listener.getLogger().println("[virtualization] Virtual computer " + name + " started");
-                        } catch (ExecutionException e) {
-                            listener.fatalError("[virtualization] Could not start virtual computer {0}", name);
-                            e.printStackTrace(listener.getLogger());
-                            failed = true;
-                        }
+                        });
+                if (queued) {
+                    listener.getLogger().println("[virtualization] Suspending " + virtualComputers.size()
+                            + " virtual computers in the background");
+                    return true;
+                }
+            }
+            try {
+                return suspendAll(virtualComputers, holder, listener);
+            } finally {
+                releaseAll(held);
+            }
+        }
+    }
+
+    /**
+     * Starts all the virtual computers concurrently (limited by {@link #getMaxConcurrentPowerOperations()}). If any
+     * of them cannot be started, the outstanding operations are cancelled and the virtual computers that were started
+     * by this call are suspended again.
+     *
+     * @param holder a description of the build, which holds the virtual computers.
+     * @return {@code true} if all the virtual computers are running.
+     */
+    private boolean startAll(List<VirtualComputer> virtualComputers, final String holder, BuildListener listener)
+            throws InterruptedException {
+        if (virtualComputers.isEmpty()) {
+            return true;
+        }
+        final Set<VirtualComputer> started = Collections.synchronizedSet(new HashSet<VirtualComputer>());
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (VirtualComputer virtualComputer : virtualComputers) {
+            tasks.add(new StartTask(virtualComputer, listener, started));
+        }
+        boolean ok = false;
+        try {
+            ok = new PowerOperationBatch(tasks, getMaxConcurrentPowerOperations()).run(listener, true);
+        } catch (InterruptedException e) {
+            // the build was aborted while starting, the batch has cancelled the starts but this thread can no
+            // longer wait for the rollback
+            final List<VirtualComputer> rollback = snapshot(started);
+            listener.getLogger().println("[virtualization] Rolling back " + rollback.size()
+                    + " started virtual computers in the background");
+            final BuildListener log = listener;
+            try {
+                VirtualizationExecutor.get().submitPowerOperation(new FutureTask<Void>(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        suspendAll(rollback, holder, log);
+                        return null;
+                    }
+                }));
+            } catch (RejectedExecutionException e1) {
+                log.error("[virtualization] Too many power operations are queued, could not roll back the start");
+            }
+            throw e;
+        }
+        if (ok) {
+            return true;
+        }
+        List<VirtualComputer> rollback = snapshot(started);
+        listener.getLogger().println("[virtualization] Rolling back " + rollback.size() + " started virtual computers");
+        suspendAll(rollback, holder, listener);
+        return false;
+    }
+
+    private static List<VirtualComputer> snapshot(Set<VirtualComputer> started) {
+        synchronized (started) {
+            return new ArrayList<VirtualComputer>(started);
+        }
+    }
+
+    /**
+     * Suspends all the virtual computers concurrently (limited by {@link #getMaxConcurrentPowerOperations()}). Virtual
+     * computers that another build holds by now are left running for that build.
+     *
+     * @param holder a description of the build that used the virtual computers.
+     * @return {@code true} if all the virtual computers were suspended or left to another build.
+     */
+    private boolean suspendAll(List<VirtualComputer> virtualComputers, String holder, TaskListener listener)
+            throws InterruptedException {
+        if (virtualComputers.isEmpty()) {
+            return true;
+        }
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (VirtualComputer virtualComputer : virtualComputers) {
+            tasks.add(new SuspendTask(virtualComputer, holder, listener));
+        }
+        return new PowerOperationBatch(tasks, getMaxConcurrentPowerOperations()).run(listener, false);
+    }
+
+    /**
+     * Runs the power operations of one build on the plugin's power workers, at most a given number at a time, so that
+     * one build cannot take all the workers.
+     */
+    private static final class PowerOperationBatch {
+        private final List<Callable<Void>> tasks;
+        private final int limit;
+        private final BlockingQueue<Task> completed = new LinkedBlockingQueue<Task>();
+        private final List<Task> submitted = new ArrayList<Task>();
+        /**
+         * Released once by every submitted task that started running, when it has stopped.
+         */
+        private final Semaphore settled = new Semaphore(0);
+
+        private PowerOperationBatch(List<Callable<Void>> tasks, int limit) {
+            this.tasks = tasks;
+            this.limit = Math.max(1, limit);
+        }
+
+        /**
+         * Runs the tasks.
+         *
+         * @param stopOnFailure whether the first failure cancels the outstanding tasks. Once they have been cancelled
+         *                      this waits until none of them is running any more.
+         * @return {@code true} if all the tasks succeeded.
+         */
+        boolean run(TaskListener listener, boolean stopOnFailure) throws InterruptedException {
+            try {
+                return runTasks(listener, stopOnFailure);
+            } catch (InterruptedException e) {
+                // the caller is aborted, so nothing is waiting for the outstanding tasks any more
+                cancelAll();
+                throw e;
+            }
+        }
+
+        private boolean runTasks(TaskListener listener, boolean stopOnFailure) throws InterruptedException {
+            Iterator<Callable<Void>> next = tasks.iterator();
+            int running = 0;
+            boolean failed = false;
+            while (running < limit && next.hasNext() && !failed) {
+                if (submit(next.next(), listener)) {
+                    running++;
+                } else {
+                    failed = true;
+                }
+            }
+            while (running > 0 && !(failed && stopOnFailure)) {
+                Task task = completed.take();
+                running--;
+                try {
+                    task.get();
+                } catch (ExecutionException e) {
+                    e.getCause().printStackTrace(listener.getLogger());
+                    failed = true;
+                } catch (CancellationException e) {
+                    // dropped by the executor as it shut down
+                    listener.error("[virtualization] A power operation was cancelled");
+                    failed = true;
+                }
+                if (next.hasNext() && !(failed && stopOnFailure)) {
+                    if (submit(next.next(), listener)) {
+                        running++;
                     } else {
-                        listener.getLogger()
-                                .println("[virtualization] Virtual computer " + name + " is already started");
+                        failed = true;
+                    }
+                }
+            }
+            if (failed && stopOnFailure) {
+                cancelAll();
+            }
+            return !failed;
+        }
+
+        /**
+         * Cancels the outstanding tasks and waits until none of them is running any more, as the cancelled tasks may
+         * still be finishing and the caller wants to know what they did. Tasks that never started, because they were
+         * still queued or were dropped by the executor, are not waited for. A task that ignores being interrupted is
+         * given up on after {@link #CANCEL_TIMEOUT_SECONDS}.
+         */
+        private void cancelAll() {
+            int started = 0;
+            for (Task task : submitted) {
+                task.cancel(true);
+                if (!task.discard()) {
+                    started++;
+                }
+            }
+            boolean interrupted = false;
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(CANCEL_TIMEOUT_SECONDS);
+            try {
+                while (true) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    try {
+                        if (remaining <= 0 || settled.tryAcquire(started, remaining, TimeUnit.MILLISECONDS)) {
+                            return;
+                        }
+                    } catch (InterruptedException e) {
+                        interrupted = true;
                     }
-                    break;
                 }
+            } finally {
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        private boolean submit(Callable<Void> callable, TaskListener listener) {
+            Task task = new Task(callable);
+            try {
+                VirtualizationExecutor.get().submitPowerOperation(task);
+            } catch (RejectedExecutionException e) {
+                listener.error("[virtualization] Too many power operations are queued");
+                return false;
             }
-            if (!found) {
-                failed = true;
+            submitted.add(task);
+            return true;
+        }
+
+        private final class Task extends FutureTask<Void> {
+            /**
+             * {@code null} while queued, {@link Boolean#TRUE} once it started running and {@link Boolean#FALSE} if
+             * it was discarded before it started.
+             */
+            private final AtomicReference<Boolean> started = new AtomicReference<Boolean>();
+
+            private Task(Callable<Void> callable) {
+                super(callable);
+            }
+
+            /**
+             * Keeps the task from running if it has not started yet.
+             *
+             * @return {@code true} if the task will never run.
+             */
+            private boolean discard() {
+                return started.compareAndSet(null, Boolean.FALSE) || Boolean.FALSE.equals(started.get());
+            }
+
+            @Override
+            public void run() {
+                if (!started.compareAndSet(null, Boolean.TRUE)) {
+                    return;
+                }
+                try {
+                    super.run();
+                } finally {
+                    settled.release();
+                }
+            }
+
+            @Override
+            protected void done() {
+                completed.add(this);
+            }
+        }
+    }
+
+    /**
+     * Starts a single virtual computer and waits for it to be running.
+     */
+    private static final class StartTask implements Callable<Void> {
+        private final VirtualComputer virtualComputer;
+        private final BuildListener listener;
+        private final Set<VirtualComputer> started;
+
+        private StartTask(VirtualComputer virtualComputer, BuildListener listener, Set<VirtualComputer> started) {
+            this.virtualComputer = virtualComputer;
+            this.listener = listener;
+            this.started = started;
+        }
+
+        public Void call() throws Exception {
+            String name = virtualComputer.getName();
+            Computer c = virtualComputer.getDatacenter().refreshComputer(name);
+            if (c == null) {
                 listener.getLogger().println("[virtualization] Could not find virtual computer " + name);
-                break;
+                throw new IOException("Could not find virtual computer " + name);
             }
+            // recorded before the start is issued, so that a failed, cancelled or interrupted start is still rolled
+            // back with the others
+            started.add(virtualComputer);
+            try {
+                if (!virtualComputer.getDatacenter().getPowerOperations().transition(name, c, PowerState.RUNNING,
+                        PowerOperationScheduler.Source.BUILD_WRAPPER, listener,
+                        TimeUnit.SECONDS.toMillis(PowerStateWatcher.DEFAULT_TIMEOUT_SECONDS),
+                        "[virtualization] Waiting for virtual computer " + name + " to start...")) {
+                    // it was running before the build, so the build must leave it running
+                    started.remove(virtualComputer);
+                    listener.getLogger()
+                            .println("[virtualization] Virtual computer " + name + " is already started");
+                    return null;
+                }
+            } catch (IOException e) {
+                listener.fatalError("[virtualization] Could not start virtual computer {0}", name);
+                throw e;
+            }
+            listener.getLogger().println("[virtualization] Virtual computer " + name + " started");
+            return null;
         }
-        if (failed) {
-            new EnvironmentImpl().tearDown(abstractBuild, listener);
+    }
+
+    /**
+     * Suspends a single virtual computer and waits for it to be suspended.
+     */
+    private static final class SuspendTask implements Callable<Void> {
+        private final VirtualComputer virtualComputer;
+        private final String holder;
+        private final TaskListener listener;
+
+        private SuspendTask(VirtualComputer virtualComputer, String holder, TaskListener listener) {
+            this.virtualComputer = virtualComputer;
+            this.holder = holder;
+            this.listener = listener;
+        }
+
+        public Void call() throws Exception {
+            String name = virtualComputer.getName();
+            Computer c = virtualComputer.getDatacenter().getComputer(name);
+            if (c == null) {
+                return null;
+            }
+            try {
+                if (!virtualComputer.getDatacenter().getPowerOperations().transition(name, c, PowerState.SUSPENDED,
+                        PowerOperationScheduler.Source.BUILD_WRAPPER, listener,
+                        TimeUnit.SECONDS.toMillis(PowerStateWatcher.DEFAULT_TIMEOUT_SECONDS),
+                        "[virtualization] Waiting for virtual computer " + name + " to suspend...",
+                        VirtualComputerLeaseManager.get().getOwnership(virtualComputer.getDatacenterUri(), holder))) {
+                    listener.getLogger()
+                            .println("[virtualization] Virtual computer " + name + " was not suspended");
+                    return null;
+                }
+            } catch (IOException e) {
+                listener.error("[virtualization] Could not suspend virtual computer {0}", name);
+                throw e;
+            }
+            listener.getLogger().println("[virtualization] Virtual computer " + name + " suspended");
             return null;
         }
-        return new EnvironmentImpl();
     }
 
     public ResourceList getResourceList() {
@@ -170,15 +641,7 @@ public class VirtualComputerBuildWrapper extends BuildWrapper implements Resourc
 
     private static VirtualComputer findVirtualComputer(String datacenterUri, String computerName) {
         computerName.getClass();
-        for (VirtualComputer c : ((DescriptorImpl) Hudson.getInstance()
-                .getDescriptor(VirtualComputerBuildWrapper.class))
-                .getVirtualComputers()) {
-            if ((datacenterUri == null || datacenterUri.equals(c.getDatacenterUri())) && computerName
-                    .equals(c.getComputerName())) {
-                return c;
-            }
-        }
-        return null;
+        return VirtualComputerIndex.get().find(datacenterUri, computerName);
     }
 
     public static final class VirtualComputerResource implements Serializable {
@@ -210,6 +673,24 @@ public class VirtualComputerBuildWrapper extends BuildWrapper implements Resourc
             return virtualComputer;
         }
 
+        /**
+         * Returns the virtual computer, asking the datacenter for it if the index does not know it yet.
+         *
+         * @return the virtual computer or {@code null} if the datacenter is not configured or does not have it.
+         */
+        VirtualComputer resolve() throws IOException, InterruptedException {
+            VirtualComputer result = getVirtualComputer();
+            if (result == null) {
+                result = VirtualComputerIndex.get().resolve(datacenterUri, computerName);
+                synchronized (this) {
+                    if (virtualComputer == null) {
+                        virtualComputer = result;
+                    }
+                }
+            }
+            return result;
+        }
+
         public synchronized Resource getResource() {
             if (resource == null) {
                 resource = new Resource(new Resource(null, datacenterUri), computerName);
@@ -256,6 +737,45 @@ public class VirtualComputerBuildWrapper extends BuildWrapper implements Resourc
         }
     }
 
+    /**
+     * Any one of the virtual computers in a datacenter whose name matches a pattern. Pool members are not locked as
+     * Hudson resources, they are handed out by the {@link VirtualComputerLeaseManager} instead.
+     */
+    public static final class VirtualComputerPoolResource implements Serializable {
+        private final String datacenterUri;
+        private final String namePattern;
+
+        @DataBoundConstructor
+        public VirtualComputerPoolResource(String datacenterUri, String namePattern) {
+            datacenterUri.getClass(); // throw NPE if null
+            namePattern.getClass(); // throw NPE if null
+            this.datacenterUri = datacenterUri;
+            this.namePattern = namePattern;
+        }
+
+        public String getDatacenterUri() {
+            return datacenterUri;
+        }
+
+        public String getNamePattern() {
+            return namePattern;
+        }
+
+        public VirtualDatacenter getDatacenter() {
+            return VirtualDatacenter.getConfigured(datacenterUri);
+        }
+
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder();
+            sb.append("VirtualComputerPoolResource");
+            sb.append("{datacenterUri='").append(datacenterUri).append('\'');
+            sb.append(", namePattern='").append(namePattern).append('\'');
+            sb.append('}');
+            return sb.toString();
+        }
+    }
+
     @Extension
     public static final class DescriptorImpl extends Descriptor<BuildWrapper> {
 
@@ -267,15 +787,25 @@ public class VirtualComputerBuildWrapper extends BuildWrapper implements Resourc
             return "Use a virtual computer running on a virtualization platform (via vcc-api) as a build resource";
         }
 
-        public Set<VirtualComputer> getVirtualComputers() {
-            SortedSet<VirtualComputer> result = new TreeSet<VirtualComputer>();
-            for (Cloud cloud : Hudson.getInstance().clouds) {
-                if (cloud instanceof VirtualDatacenter) {
-                    VirtualDatacenter datacenter = VirtualDatacenter.class.cast(cloud);
-                    result.addAll(datacenter.getVirtualComputers().values());
-                }
+        /**
+         * Completes a partly typed computer name, looking only in the selected datacenter if there is one.
+         */
+        public void doAutoCompleteComputerName(@QueryParameter String value, @QueryParameter String datacenterUri,
+                                               StaplerResponse rsp) throws IOException {
+            Hudson.getInstance().checkPermission(Item.CONFIGURE);
+            VirtualComputerIndex.get().writeCompletions(Util.fixEmpty(datacenterUri), Util.fixNull(value), rsp);
+        }
+
+        /**
+         * Checks that the selected datacenter has a computer with the name entered.
+         */
+        public FormValidation doCheckComputerName(@QueryParameter String value,
+                                                  @QueryParameter String datacenterUri) {
+            if (!Hudson.getInstance().hasPermission(Item.CONFIGURE)) {
+                return FormValidation.ok();
             }
-            return result;
+            return VirtualComputerIndex.get()
+                    .checkComputerName(Util.fixEmpty(datacenterUri), Util.fixEmptyAndTrim(value));
         }
 
         public List<VirtualDatacenter> getDatacenters() {
@@ -0,0 +1,248 @@
+package hudson.plugins.virtualization;
+
+import hudson.Util;
+import hudson.model.Hudson;
+import hudson.slaves.Cloud;
+import hudson.util.FormValidation;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+/**
+ * The plugin wide index of the virtual computers in every {@link VirtualDatacenter}, keyed by datacenter URI and
+ * computer name.
+ * <p/>
+ * The index is updated incrementally by each datacenter's inventory refresh, so resolving a virtual computer does not
+ * need to visit every cloud.
+ */
+public final class VirtualComputerIndex {
+
+    private static final VirtualComputerIndex INSTANCE = new VirtualComputerIndex();
+
+    /**
+     * The most names offered when completing a computer name.
+     */
+    static final int MAX_COMPLETIONS =
+            Integer.getInteger(VirtualComputerIndex.class.getName() + ".maxCompletions", 20);
+
+    /**
+     * Computer name to (datacenter URI to virtual computer).
+     */
+    private final Map<String, Map<String, VirtualComputer>> byName = new HashMap<String, Map<String, VirtualComputer>>();
+
+    /**
+     * The datacenter that last updated the entries for each datacenter URI.
+     */
+    private final Map<String, VirtualDatacenter> owners = new HashMap<String, VirtualDatacenter>();
+
+    private VirtualComputerIndex() {
+    }
+
+    public static VirtualComputerIndex get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Replaces all the entries for a datacenter. Only a configured datacenter may take the entries over from another
+     * one, so that a refresh still running in a datacenter that has been replaced by a configuration change cannot
+     * take them back from its replacement. While Hudson is loading its configuration no datacenter is configured yet,
+     * so any datacenter may claim a URI that has no entries.
+     */
+    synchronized void replace(VirtualDatacenter datacenter, Collection<VirtualComputer> virtualComputers) {
+        String uri = datacenter.getDatacenterUri();
+        VirtualDatacenter owner = owners.get(uri);
+        if (owner != null && owner != datacenter && !Hudson.getInstance().clouds.contains(datacenter)) {
+            return;
+        }
+        for (Iterator<Map<String, VirtualComputer>> i = byName.values().iterator(); i.hasNext();) {
+            Map<String, VirtualComputer> entries = i.next();
+            entries.remove(uri);
+            if (entries.isEmpty()) {
+                i.remove();
+            }
+        }
+        owners.put(uri, datacenter);
+        for (VirtualComputer virtualComputer : virtualComputers) {
+            put(uri, virtualComputer);
+        }
+    }
+
+    /**
+     * Applies the changes found by an inventory refresh of a datacenter.
+     */
+    synchronized void update(VirtualDatacenter datacenter, Collection<VirtualComputer> added,
+                             Collection<String> removed) {
+        String uri = datacenter.getDatacenterUri();
+        if (owners.get(uri) != datacenter) {
+            // the cloud has been reconfigured, the incremental changes are relative to an inventory we never saw
+            return;
+        }
+        if (added.isEmpty() && removed.isEmpty()) {
+            return;
+        }
+        for (String name : removed) {
+            Map<String, VirtualComputer> entries = byName.get(name);
+            if (entries != null) {
+                entries.remove(uri);
+                if (entries.isEmpty()) {
+                    byName.remove(name);
+                }
+            }
+        }
+        for (VirtualComputer virtualComputer : added) {
+            put(uri, virtualComputer);
+        }
+    }
+
+    /**
+     * Returns {@code true} if the entries for the datacenter's URI were last loaded by that datacenter.
+     */
+    synchronized boolean isOwner(VirtualDatacenter datacenter) {
+        return owners.get(datacenter.getDatacenterUri()) == datacenter;
+    }
+
+    private void put(String uri, VirtualComputer virtualComputer) {
+        Map<String, VirtualComputer> entries = byName.get(virtualComputer.getName());
+        if (entries == null) {
+            entries = new LinkedHashMap<String, VirtualComputer>(2);
+            byName.put(virtualComputer.getName(), entries);
+        }
+        entries.put(uri, virtualComputer);
+    }
+
+    /**
+     * Finds a virtual computer.
+     *
+     * @param datacenterUri the datacenter URI or {@code null} to match any datacenter.
+     * @param computerName  the name of the computer.
+     * @return the virtual computer or {@code null} if no configured datacenter has it.
+     */
+    public synchronized VirtualComputer find(String datacenterUri, String computerName) {
+        Map<String, VirtualComputer> entries = byName.get(computerName);
+        if (entries == null) {
+            return null;
+        }
+        if (datacenterUri != null) {
+            VirtualComputer virtualComputer = entries.get(datacenterUri);
+            return virtualComputer != null && isConfigured(virtualComputer) ? virtualComputer : null;
+        }
+        for (VirtualComputer virtualComputer : entries.values()) {
+            if (isConfigured(virtualComputer)) {
+                return virtualComputer;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds a virtual computer, asking its datacenter for it if the index does not have it. This may wait for an
+     * inventory refresh, so it is meant for the points where a configuration is checked or put to use, not for
+     * rendering pages.
+     *
+     * @param datacenterUri the datacenter URI.
+     * @param computerName  the name of the computer.
+     * @return the virtual computer or {@code null} if no datacenter with that URI is configured or the datacenter
+     *         does not have the computer.
+     */
+    public VirtualComputer resolve(String datacenterUri, String computerName)
+            throws IOException, InterruptedException {
+        VirtualComputer virtualComputer = find(datacenterUri, computerName);
+        if (virtualComputer != null) {
+            return virtualComputer;
+        }
+        VirtualDatacenter datacenter = VirtualDatacenter.getConfigured(datacenterUri);
+        if (datacenter == null || datacenter.getComputer(computerName) == null) {
+            return null;
+        }
+        virtualComputer = datacenter.getVirtualComputers().get(computerName);
+        return virtualComputer == null ? new VirtualComputer(datacenter, computerName) : virtualComputer;
+    }
+
+    /**
+     * Returns the names of virtual computers that start with a prefix, for completing names on the configuration
+     * pages. Each datacenter only looks at the matching part of its sorted inventory, so this stays cheap however many
+     * virtual computers there are.
+     *
+     * @param datacenterUri the datacenter URI or {@code null} to look in every configured datacenter.
+     * @param prefix        the start of the name.
+     * @return at most {@link #MAX_COMPLETIONS} distinct names, sorted.
+     */
+    public List<String> complete(String datacenterUri, String prefix) {
+        pruneOwners();
+        SortedSet<String> names = new TreeSet<String>();
+        for (Cloud cloud : Hudson.getInstance().clouds) {
+            if (cloud instanceof VirtualDatacenter) {
+                VirtualDatacenter datacenter = (VirtualDatacenter) cloud;
+                if (datacenterUri == null || datacenterUri.equals(datacenter.getDatacenterUri())) {
+                    names.addAll(datacenter.findComputerNames(prefix, MAX_COMPLETIONS));
+                }
+            }
+        }
+        List<String> result = new ArrayList<String>(names);
+        return result.size() > MAX_COMPLETIONS ? result.subList(0, MAX_COMPLETIONS) : result;
+    }
+
+    private synchronized void pruneOwners() {
+        for (Iterator<VirtualDatacenter> i = owners.values().iterator(); i.hasNext();) {
+            if (!Hudson.getInstance().clouds.contains(i.next())) {
+                // a cloud has been removed since it was indexed
+                i.remove();
+            }
+        }
+    }
+
+    /**
+     * Checks a computer name entered on a configuration page against the inventory of the selected datacenter.
+     */
+    FormValidation checkComputerName(String datacenterUri, String computerName) {
+        if (computerName == null) {
+            return FormValidation.error("The computer name is required");
+        }
+        VirtualDatacenter datacenter = datacenterUri == null ? null : VirtualDatacenter.getConfigured(datacenterUri);
+        if (datacenter == null) {
+            return FormValidation.error("No datacenter is configured for " + Util.fixNull(datacenterUri));
+        }
+        if (find(datacenterUri, computerName) != null) {
+            return FormValidation.ok();
+        }
+        Map<String, VirtualComputer> virtualComputers = datacenter.getVirtualComputers();
+        if (virtualComputers.containsKey(computerName)) {
+            return FormValidation.ok();
+        }
+        if (virtualComputers.isEmpty()) {
+            return FormValidation.warning("The inventory of " + datacenterUri + " has not been loaded yet");
+        }
+        return FormValidation.error("There is no virtual computer named " + computerName + " in " + datacenterUri);
+    }
+
+    /**
+     * Writes the completions for a partly typed computer name in the form the completion script expects.
+     */
+    void writeCompletions(String datacenterUri, String prefix, StaplerResponse rsp) throws IOException {
+        JSONArray suggestions = new JSONArray();
+        for (String name : complete(datacenterUri, prefix)) {
+            JSONObject suggestion = new JSONObject();
+            suggestion.put("name", name);
+            suggestions.add(suggestion);
+        }
+        JSONObject result = new JSONObject();
+        result.put("suggestions", suggestions);
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(result.toString());
+    }
+
+    private static boolean isConfigured(VirtualComputer virtualComputer) {
+        return Hudson.getInstance().clouds.contains(virtualComputer.getDatacenter());
+    }
+}
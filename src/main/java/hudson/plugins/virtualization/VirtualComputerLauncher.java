@@ -8,26 +8,45 @@ import hudson.model.Hudson;
 import hudson.Extension;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 import org.kohsuke.stapler.DataBoundConstructor;
-import net.java.dev.vcc.api.Datacenter;
 import net.java.dev.vcc.api.Computer;
 import net.java.dev.vcc.api.PowerState;
-import net.java.dev.vcc.api.commands.StartComputer;
-import net.java.dev.vcc.api.commands.SuspendComputer;
 
 /**
  * Created by IntelliJ IDEA. User: connollys Date: Aug 13, 2009 Time: 3:02:47 PM To change this template use File |
  * Settings | File Templates.
  */
 public class VirtualComputerLauncher extends ComputerLauncher {
+
+    /**
+     * How long a launch waits for the guest to be ready when no readiness timeout is configured.
+     */
+    public static final int DEFAULT_READY_TIMEOUT_SECONDS = 600;
+
     private final ComputerLauncher delegate;
     private final VirtualComputer virtualComputer;
+    private final List<ReadinessProbe> readinessProbes;
+    private final int readyTimeoutSeconds;
 
-    @DataBoundConstructor
     public VirtualComputerLauncher(ComputerLauncher delegate, VirtualComputer virtualComputer) {
+        this(delegate, virtualComputer, null, 0);
+    }
+
+    @DataBoundConstructor
+    public VirtualComputerLauncher(ComputerLauncher delegate, VirtualComputer virtualComputer,
+                                   List<? extends ReadinessProbe> readinessProbes, int readyTimeoutSeconds) {
         this.delegate = delegate;
         this.virtualComputer = virtualComputer;
+        this.readinessProbes = readinessProbes == null || readinessProbes.isEmpty()
+                ? null
+                : new ArrayList<ReadinessProbe>(readinessProbes);
+        this.readyTimeoutSeconds = readyTimeoutSeconds;
     }
 
     public ComputerLauncher getDelegate() {
@@ -38,41 +57,116 @@ public class VirtualComputerLauncher extends ComputerLauncher {
         return virtualComputer;
     }
 
+    /**
+     * The checks run, in order, once the virtual computer is running and before the secondary launcher.
+     */
+    public List<ReadinessProbe> getReadinessProbes() {
+        return readinessProbes == null
+                ? Collections.<ReadinessProbe>emptyList()
+                : Collections.unmodifiableList(readinessProbes);
+    }
+
+    /**
+     * How long a launch may wait for the virtual computer to be running and for all the readiness probes to pass.
+     */
+    public int getReadyTimeoutSeconds() {
+        return readyTimeoutSeconds <= 0 ? DEFAULT_READY_TIMEOUT_SECONDS : readyTimeoutSeconds;
+    }
+
     @Override
     public boolean isLaunchSupported() {
         return delegate.isLaunchSupported();
     }
 
+    /**
+     * Launches the slave in stages: resolve the virtual computer, power it on, wait for the guest to be ready and
+     * hand over to the secondary launcher. Each stage's outcome and duration is written to the launch log and any
+     * failure fails the launch. The waits for the virtual computer to start are served by the datacenter's shared
+     * {@link PowerStateWatcher}, so no thread polls on behalf of a single launch.
+     */
     @Override
-    public void launch(SlaveComputer slaveComputer, TaskListener taskListener)
+    public void launch(final SlaveComputer slaveComputer, final TaskListener taskListener)
             throws IOException, InterruptedException {
-        taskListener.getLogger().println("Getting connection to the virtual datacenter");
+        taskListener.getLogger().println("Target virtual computer: " + virtualComputer);
+        final long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(getReadyTimeoutSeconds());
         try {
-            taskListener.getLogger().println("Target virtual computer: " + virtualComputer);
-        Datacenter datacenter = virtualComputer.getDatacenter().getConnection();
-        taskListener.getLogger().println("Finding the computer");
-        for (Computer c : datacenter.getAllComputers()) {
-            if (virtualComputer.getName().equals(c.getName())) {
-                taskListener.getLogger().println("Found the computer");
-                if (!PowerState.RUNNING.equals(c.getState())) {
-                    taskListener.getLogger().println("Starting virtual computer");
-                    c.execute(new StartComputer());
-                } else {
-                    taskListener.getLogger().println("Virtual computer is already running");
+            final Computer c = runStage("Resolve", taskListener, new Callable<Computer>() {
+                public Computer call() throws Exception {
+                    Computer c = virtualComputer.getDatacenter().refreshComputer(virtualComputer.getName());
+                    if (c == null) {
+                        throw new IOException("Could not find the computer");
+                    }
+                    return c;
                 }
-                taskListener.getLogger().println("Starting stage 2 launcher");
-                delegate.launch(slaveComputer, taskListener);
-                taskListener.getLogger().println("Stage 2 launcher completed");
-                return;
-            }
-        }
-        taskListener.getLogger().println("Could not find the computer");
-        throw new IOException("Could not find the computer");
+            });
+            runStage("Power on", taskListener, new Callable<Void>() {
+                public Void call() throws Exception {
+                    powerOn(c, deadline, taskListener);
+                    return null;
+                }
+            });
+            runStage("Wait for ready", taskListener, new Callable<Void>() {
+                public Void call() throws Exception {
+                    for (ReadinessProbe probe : getReadinessProbes()) {
+                        taskListener.getLogger()
+                                .println("Checking readiness: " + probe.getDescriptor().getDisplayName());
+                        probe.await(virtualComputer, deadline, taskListener);
+                    }
+                    return null;
+                }
+            });
+            runStage("Secondary launcher", taskListener, new Callable<Void>() {
+                public Void call() throws Exception {
+                    delegate.launch(slaveComputer, taskListener);
+                    return null;
+                }
+            });
         } catch (IOException e) {
             e.printStackTrace(taskListener.getLogger());
             throw e;
-        } catch (Throwable t) {
-            t.printStackTrace(taskListener.getLogger());
+        }
+    }
+
+    /**
+     * Runs one stage of the launch, logging its duration. Anything other than an {@link InterruptedException} or
+     * an {@link Error} that the stage throws is reported as an {@link IOException} so that the launch is seen to
+     * have failed.
+     */
+    private static <T> T runStage(String name, TaskListener taskListener, Callable<T> stage)
+            throws IOException, InterruptedException {
+        taskListener.getLogger().println(name + ": started");
+        long start = System.currentTimeMillis();
+        boolean ok = false;
+        try {
+            T result = stage.call();
+            ok = true;
+            return result;
+        } catch (IOException e) {
+            throw e;
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            IOException ioe = new IOException(name + " failed: " + e);
+            ioe.initCause(e);
+            throw ioe;
+        } finally {
+            taskListener.getLogger().println(name + ": " + (ok ? "completed" : "failed") + " after "
+                    + (System.currentTimeMillis() - start) + "ms");
+        }
+    }
+
+    /**
+     * Starts the virtual computer unless it is already running, and waits for it to be running.
+     */
+    private void powerOn(Computer c, long deadline, TaskListener taskListener)
+            throws IOException, InterruptedException {
+        // always asks the registry, which also knows about operations on the computer that are still in flight
+        if (virtualComputer.getDatacenter().getPowerOperations().transition(virtualComputer.getName(), c,
+                PowerState.RUNNING, PowerOperationScheduler.Source.LAUNCHER, taskListener,
+                deadline - System.currentTimeMillis(), "Waiting for virtual computer to start...")) {
+            taskListener.getLogger().println("Virtual computer is running");
+        } else {
+            taskListener.getLogger().println("Virtual computer is already running");
         }
     }
 
@@ -82,26 +176,48 @@ public class VirtualComputerLauncher extends ComputerLauncher {
         delegate.afterDisconnect(slaveComputer, taskListener);
         taskListener.getLogger().println("Getting connection to the virtual datacenter");
         try {
-            Datacenter datacenter = virtualComputer.getDatacenter().getConnection();
             taskListener.getLogger().println("Finding the computer");
-            for (Computer c : datacenter.getAllComputers()) {
-                if (virtualComputer.getName().equals(c.getName())) {
-                    taskListener.getLogger().println("Found the computer");
-                    if (PowerState.RUNNING.equals(c.getState())) {
-                        taskListener.getLogger().println("Suspending virtual computer");
-                        c.execute(new SuspendComputer());
-                    } else {
-                        taskListener.getLogger().println("Virtual computer is already suspended");
-                    }
-                    return;
+            Computer c = virtualComputer.getDatacenter().getComputer(virtualComputer.getName());
+            if (c == null) {
+                taskListener.getLogger().println("Could not find the computer");
+                return;
+            }
+            taskListener.getLogger().println("Found the computer");
+            PowerState state = virtualComputer.getDatacenter().getPowerState(virtualComputer.getName(), c);
+            if (PowerState.RUNNING.equals(state)) {
+                taskListener.getLogger().println("Suspending virtual computer");
+                if (virtualComputer.getDatacenter().getPowerOperations().transition(virtualComputer.getName(), c,
+                        PowerState.SUSPENDED, PowerOperationScheduler.Source.LAUNCHER, taskListener,
+                        TimeUnit.SECONDS.toMillis(PowerStateWatcher.DEFAULT_TIMEOUT_SECONDS),
+                        "Waiting for virtual computer to suspend...", getBuildOwnership())) {
+                    taskListener.getLogger().println("Virtual computer is suspended");
                 }
+            } else {
+                taskListener.getLogger().println("Virtual computer is already suspended");
             }
-            taskListener.getLogger().println("Could not find the computer");
         } catch (Throwable t) {
             taskListener.fatalError(t.getMessage(), t);
         }
     }
 
+    /**
+     * Returns who holds the virtual computer for a build: a build that leased or claimed it, or a running build that
+     * uses it as a fixed resource but has not claimed it yet. The slave must not suspend it from under them.
+     */
+    private PowerOperationRegistry.Ownership getBuildOwnership() {
+        final PowerOperationRegistry.Ownership leases =
+                VirtualComputerLeaseManager.get().getOwnership(virtualComputer.getDatacenterUri(), null);
+        return new PowerOperationRegistry.Ownership() {
+            public String getOtherHolder(String name) {
+                String holder = leases.getOtherHolder(name);
+                if (holder == null && VirtualComputerBuildWrapper.getInUse().contains(virtualComputer)) {
+                    holder = "a running build";
+                }
+                return holder;
+            }
+        };
+    }
+
     @Override
     public void beforeDisconnect(SlaveComputer slaveComputer, TaskListener taskListener) {
         delegate.beforeDisconnect(slaveComputer, taskListener);
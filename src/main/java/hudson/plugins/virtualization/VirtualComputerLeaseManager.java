@@ -0,0 +1,241 @@
+package hudson.plugins.virtualization;
+
+import hudson.model.Hudson;
+import hudson.model.TaskListener;
+import net.java.dev.vcc.api.PowerState;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Hands out the members of virtual computer pools to builds, one build per member at a time. The fixed virtual
+ * computers of running builds are claimed here as well, so that a pool never hands out a virtual computer that a build
+ * uses as a fixed resource, nor the other way round.
+ * <p/>
+ * Members are ranked by the last power state seen by the inventory, so picking one does not query the datacenter
+ * for every free member; the build wrapper checks the actual state of the member it gets when it starts it. The claim
+ * itself is atomic and re-checks that the chosen member is still free.
+ */
+final class VirtualComputerLeaseManager {
+
+    private static final Logger LOGGER = Logger.getLogger(VirtualComputerLeaseManager.class.getName());
+
+    private static final VirtualComputerLeaseManager INSTANCE = new VirtualComputerLeaseManager();
+
+    /**
+     * How long to wait before looking again for a free member of an exhausted pool.
+     */
+    private static final long RETRY_MILLIS =
+            Long.getLong(VirtualComputerLeaseManager.class.getName() + ".retryMillis", 10000);
+
+    /**
+     * The leased members, keyed by datacenter URI and computer name, with the build holding each one.
+     */
+    private final Map<VirtualComputerBuildWrapper.VirtualComputerResource, String> leases =
+            new HashMap<VirtualComputerBuildWrapper.VirtualComputerResource, String>();
+
+    private VirtualComputerLeaseManager() {
+    }
+
+    static VirtualComputerLeaseManager get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Leases a free member of a pool, waiting for one to become free if necessary. Members last seen running are
+     * preferred over suspended ones, and suspended ones over those that are powered off.
+     *
+     * @param datacenter  the datacenter holding the pool.
+     * @param namePattern the regular expression that the names of the pool's members match.
+     * @param holder      a description of the build taking the lease.
+     * @param listener    the build log.
+     * @return the leased virtual computer.
+     * @throws IOException if the pool has no members at all.
+     */
+    VirtualComputer lease(VirtualDatacenter datacenter, String namePattern, String holder, TaskListener listener)
+            throws IOException, InterruptedException {
+        Pattern pattern = Pattern.compile(namePattern);
+        boolean waiting = false;
+        while (true) {
+            List<VirtualComputer> members = new ArrayList<VirtualComputer>();
+            for (VirtualComputer virtualComputer : datacenter.getVirtualComputers().values()) {
+                if (pattern.matcher(virtualComputer.getName()).matches()) {
+                    members.add(virtualComputer);
+                }
+            }
+            if (members.isEmpty()) {
+                throw new IOException("No virtual computers in " + datacenter.getDatacenterUri() + " match "
+                        + namePattern);
+            }
+            Map<String, ComputerRecord> records = datacenter.getComputerRecords();
+            Set<VirtualComputer> inUse = VirtualComputerBuildWrapper.getInUse();
+            List<Candidate> candidates = new ArrayList<Candidate>();
+            for (VirtualComputer virtualComputer : members) {
+                if (isFree(virtualComputer, inUse)) {
+                    candidates.add(new Candidate(virtualComputer, rank(records.get(virtualComputer.getName()))));
+                }
+            }
+            Collections.sort(candidates, Candidate.BY_RANK);
+            synchronized (this) {
+                for (Candidate candidate : candidates) {
+                    VirtualComputerBuildWrapper.VirtualComputerResource key = key(candidate.virtualComputer);
+                    if (!leases.containsKey(key)) {
+                        leases.put(key, holder);
+                        LOGGER.log(Level.FINE, "Leased {0} to {1}", new Object[]{key, holder});
+                        return candidate.virtualComputer;
+                    }
+                }
+            }
+            if (!waiting) {
+                listener.getLogger().println("[virtualization] All " + members.size() + " virtual computers matching "
+                        + namePattern + " are in use, waiting for one to be released");
+                waiting = true;
+            }
+            synchronized (this) {
+                wait(RETRY_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Claims a fixed virtual computer of a build, waiting while a pool has leased it to another build. Hudson's
+     * resource locking already keeps two builds from using the same fixed virtual computer, so this only ever waits
+     * for pool leases. The claim must be given back with {@link #release(VirtualComputer)}.
+     *
+     * @param virtualComputer the virtual computer.
+     * @param holder          a description of the build taking the claim.
+     * @param listener        the build log.
+     */
+    void claim(VirtualComputer virtualComputer, String holder, TaskListener listener) throws InterruptedException {
+        VirtualComputerBuildWrapper.VirtualComputerResource key = key(virtualComputer);
+        boolean waiting = false;
+        synchronized (this) {
+            while (true) {
+                String current = leases.get(key);
+                if (current == null) {
+                    leases.put(key, holder);
+                    LOGGER.log(Level.FINE, "Claimed {0} for {1}", new Object[]{key, holder});
+                    return;
+                }
+                if (!waiting) {
+                    listener.getLogger().println("[virtualization] Virtual computer " + virtualComputer.getName()
+                            + " is leased to " + current + ", waiting for it to be released");
+                    waiting = true;
+                }
+                wait(RETRY_MILLIS);
+            }
+        }
+    }
+
+    /**
+     * Returns a leased or claimed virtual computer.
+     */
+    synchronized void release(VirtualComputer virtualComputer) {
+        if (leases.remove(key(virtualComputer)) != null) {
+            notifyAll();
+        }
+    }
+
+    /**
+     * Returns {@code true} if the virtual computer is leased to a build.
+     */
+    synchronized boolean isLeased(VirtualComputer virtualComputer) {
+        return leases.containsKey(key(virtualComputer));
+    }
+
+    /**
+     * Returns {@code true} if the named computer in the datacenter is leased to a build.
+     */
+    synchronized boolean isLeased(String datacenterUri, String computerName) {
+        return leases.containsKey(key(datacenterUri, computerName));
+    }
+
+    /**
+     * Returns the build that has leased or claimed the named computer in the datacenter.
+     *
+     * @return a description of the build, or {@code null} if no build holds the computer.
+     */
+    synchronized String getHolder(String datacenterUri, String computerName) {
+        return leases.get(key(datacenterUri, computerName));
+    }
+
+    /**
+     * Returns who holds the computers of a datacenter apart from the given build, so that a suspend by that build
+     * leaves alone the computers that another build has taken over since.
+     *
+     * @param datacenterUri the datacenter.
+     * @param holder        a description of the build suspending, or {@code null} if it is not a build.
+     */
+    PowerOperationRegistry.Ownership getOwnership(final String datacenterUri, final String holder) {
+        return new PowerOperationRegistry.Ownership() {
+            public String getOtherHolder(String name) {
+                String current = getHolder(datacenterUri, name);
+                return current == null || current.equals(holder) ? null : current;
+            }
+        };
+    }
+
+    /**
+     * @param inUse the fixed virtual computers of the running builds, which may not have claimed them yet.
+     */
+    private boolean isFree(VirtualComputer virtualComputer, Set<VirtualComputer> inUse) {
+        // members that have been turned into slaves belong to the node, not the pool
+        return !isLeased(virtualComputer) && !inUse.contains(virtualComputer)
+                && Hudson.getInstance().getNode(virtualComputer.getName()) == null;
+    }
+
+    /**
+     * Returns how quickly the computer can be made ready, lower being quicker, judged by its last known state.
+     */
+    private static int rank(ComputerRecord record) {
+        PowerState state = record == null ? null : record.getLastState();
+        if (PowerState.RUNNING.equals(state)) {
+            return 0;
+        }
+        if (PowerState.SUSPENDED.equals(state)) {
+            return 1;
+        }
+        if (PowerState.POWERED_OFF.equals(state)) {
+            return 2;
+        }
+        return 3;
+    }
+
+    private static VirtualComputerBuildWrapper.VirtualComputerResource key(VirtualComputer virtualComputer) {
+        return key(virtualComputer.getDatacenterUri(), virtualComputer.getName());
+    }
+
+    private static VirtualComputerBuildWrapper.VirtualComputerResource key(String datacenterUri, String name) {
+        try {
+            return new VirtualComputerBuildWrapper.VirtualComputerResource(datacenterUri, name);
+        } catch (IOException e) {
+            // the constructor does not do any I/O
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static final class Candidate {
+        private static final Comparator<Candidate> BY_RANK = new Comparator<Candidate>() {
+            public int compare(Candidate o1, Candidate o2) {
+                return o1.rank < o2.rank ? -1 : (o1.rank == o2.rank ? o1.virtualComputer.compareTo(o2.virtualComputer) : 1);
+            }
+        };
+
+        private final VirtualComputer virtualComputer;
+        private final int rank;
+
+        private Candidate(VirtualComputer virtualComputer, int rank) {
+            this.virtualComputer = virtualComputer;
+            this.rank = rank;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package hudson.plugins.virtualization;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.Hudson;
+import hudson.model.PeriodicWork;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.util.NullStream;
+import hudson.util.StreamTaskListener;
+import net.java.dev.vcc.api.PowerState;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resumes the virtual computers of queued builds before they get an executor, so that waiting in the queue and
+ * waiting for the resume overlap.
+ * <p/>
+ * Only build wrappers that ask for it are considered, and only their fixed virtual computers: pool members are not
+ * chosen until the build starts. A virtual computer used by a running build, or held in the
+ * {@link VirtualComputerLeaseManager}, is left alone. Once a build starts it owns its virtual computers and they are
+ * forgotten here. If the queued build goes away without starting, the virtual computers it caused to be resumed are
+ * suspended again after a grace period.
+ */
+@Extension
+public class VirtualComputerPreResumer extends PeriodicWork {
+
+    private static final Logger LOGGER = Logger.getLogger(VirtualComputerPreResumer.class.getName());
+
+    /**
+     * How often the queue is scanned.
+     */
+    private static final long SCAN_SECONDS =
+            Long.getLong(VirtualComputerPreResumer.class.getName() + ".scanSeconds", 10L);
+
+    /**
+     * How long a pre-resumed virtual computer stays running after the build it was resumed for has left the queue
+     * without starting.
+     */
+    private static final long GRACE_SECONDS =
+            Long.getLong(VirtualComputerPreResumer.class.getName() + ".graceSeconds", 300L);
+
+    /**
+     * How many pre-resumes may be in flight at once, so that they cannot take over the plugin's power workers.
+     */
+    private static final int MAX_IN_FLIGHT =
+            Integer.getInteger(VirtualComputerPreResumer.class.getName() + ".maxInFlight", 4);
+
+    private static final TaskListener LISTENER = new StreamTaskListener(new NullStream());
+
+    /**
+     * The virtual computers resumed (or being resumed) on behalf of queued builds, with when they were last wanted.
+     */
+    private final Map<VirtualComputer, Long> resumed = new HashMap<VirtualComputer, Long>();
+
+    private int inFlight = 0;
+
+    public long getRecurrencePeriod() {
+        return TimeUnit.SECONDS.toMillis(SCAN_SECONDS);
+    }
+
+    @Override
+    protected void doRun() throws Exception {
+        Set<VirtualComputer> wanted = new HashSet<VirtualComputer>();
+        for (Queue.Item item : Hudson.getInstance().getQueue().getItems()) {
+            for (VirtualComputerBuildWrapper wrapper : VirtualComputerBuildWrapper.getWrappers(item.task)) {
+                if (!wrapper.isPreResume()) {
+                    continue;
+                }
+                for (VirtualComputerBuildWrapper.VirtualComputerResource resource : wrapper.getResources()) {
+                    VirtualComputer virtualComputer = resource.getVirtualComputer();
+                    if (virtualComputer != null) {
+                        wanted.add(virtualComputer);
+                    }
+                }
+            }
+        }
+        Set<VirtualComputer> inUse = VirtualComputerBuildWrapper.getInUse();
+        VirtualComputerLeaseManager leases = VirtualComputerLeaseManager.get();
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            for (VirtualComputer virtualComputer : wanted) {
+                if (resumed.containsKey(virtualComputer)) {
+                    resumed.put(virtualComputer, now);
+                } else if (!inUse.contains(virtualComputer) && !leases.isLeased(virtualComputer)
+                        && inFlight < MAX_IN_FLIGHT) {
+                    if (submit(virtualComputer, PowerState.RUNNING)) {
+                        resumed.put(virtualComputer, now);
+                    }
+                }
+            }
+            for (Iterator<Map.Entry<VirtualComputer, Long>> i = resumed.entrySet().iterator(); i.hasNext();) {
+                Map.Entry<VirtualComputer, Long> entry = i.next();
+                VirtualComputer virtualComputer = entry.getKey();
+                if (wanted.contains(virtualComputer)) {
+                    continue;
+                }
+                if (inUse.contains(virtualComputer) || leases.isLeased(virtualComputer)) {
+                    // a build owns the virtual computer now
+                    i.remove();
+                } else if (now - entry.getValue() > TimeUnit.SECONDS.toMillis(GRACE_SECONDS)) {
+                    LOGGER.log(Level.INFO, "Suspending {0}, the queued build it was resumed for did not start",
+                            virtualComputer.getName());
+                    submit(virtualComputer, PowerState.SUSPENDED);
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Brings a virtual computer to a power state in the background.
+     *
+     * @return {@code false} if the work could not be queued.
+     */
+    private boolean submit(final VirtualComputer virtualComputer, final PowerState target) {
+        inFlight++;
+        try {
+            VirtualizationExecutor.get().submitPowerOperation(new FutureTask<Void>(new Callable<Void>() {
+                public Void call() throws Exception {
+                    try {
+                        String name = virtualComputer.getName();
+                        net.java.dev.vcc.api.Computer c = virtualComputer.getDatacenter().getComputer(name);
+                        boolean changed = c != null && virtualComputer.getDatacenter().getPowerOperations()
+                                .transition(name, c, target, PowerOperationScheduler.Source.BUILD_WRAPPER, LISTENER,
+                                        TimeUnit.SECONDS.toMillis(PowerStateWatcher.DEFAULT_TIMEOUT_SECONDS),
+                                        "Waiting for " + name + " to reach " + target, VirtualComputerLeaseManager
+                                                .get().getOwnership(virtualComputer.getDatacenterUri(), null));
+                        if (!changed && PowerState.RUNNING.equals(target)) {
+                            // it was already running, so it is not ours to suspend again
+                            synchronized (VirtualComputerPreResumer.this) {
+                                resumed.remove(virtualComputer);
+                            }
+                        }
+                    } catch (Exception e) {
+                        LOGGER.log(Level.WARNING, "Could not bring " + virtualComputer.getName() + " to " + target,
+                                e);
+                    } finally {
+                        synchronized (VirtualComputerPreResumer.this) {
+                            inFlight--;
+                        }
+                    }
+                    return null;
+                }
+            }));
+            return true;
+        } catch (RejectedExecutionException e) {
+            inFlight--;
+            LOGGER.log(Level.FINE, "Not pre-resuming, the executor is busy", e);
+            return false;
+        }
+    }
+
+    /**
+     * Forgets the virtual computers of a build that has left the queue, as the build owns them from now on. This
+     * does not wait for the next scan, which a short build may finish before.
+     */
+    private synchronized void started(AbstractBuild<?, ?> build) {
+        for (VirtualComputerBuildWrapper wrapper : VirtualComputerBuildWrapper.getWrappers(build.getProject())) {
+            for (VirtualComputerBuildWrapper.VirtualComputerResource resource : wrapper.getResources()) {
+                VirtualComputer virtualComputer = resource.getVirtualComputer();
+                if (virtualComputer != null) {
+                    resumed.remove(virtualComputer);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tells the pre-resumer about builds leaving the queue.
+     */
+    @Extension
+    public static final class StartedListener extends RunListener<AbstractBuild> {
+        public StartedListener() {
+            super(AbstractBuild.class);
+        }
+
+        @Override
+        public void onStarted(AbstractBuild build, TaskListener listener) {
+            VirtualComputerPreResumer preResumer = PeriodicWork.all().get(VirtualComputerPreResumer.class);
+            if (preResumer != null) {
+                preResumer.started(build);
+            }
+        }
+    }
+}
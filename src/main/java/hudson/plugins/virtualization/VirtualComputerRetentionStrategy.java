@@ -0,0 +1,170 @@
+package hudson.plugins.virtualization;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Descriptor;
+import hudson.model.Hudson;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.Queue;
+import hudson.slaves.RetentionStrategy;
+import hudson.slaves.SlaveComputer;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps virtual computer slaves warm between builds.
+ * <p/>
+ * A slave is started when there are queued builds it could run. An idle slave is only taken offline (which
+ * suspends its virtual computer) once it has lingered for a while, as long as that leaves enough running slaves for
+ * each of its labels and no other slave with one of its labels was suspended too recently.
+ */
+public class VirtualComputerRetentionStrategy extends RetentionStrategy<SlaveComputer> {
+
+    private static final Logger LOGGER = Logger.getLogger(VirtualComputerRetentionStrategy.class.getName());
+
+    /**
+     * When a slave with a given label was last suspended.
+     */
+    private static final Map<String, Long> LAST_SUSPEND = new HashMap<String, Long>();
+
+    private final int lingerMinutes;
+    private final int minimumWarm;
+    private final int suspendIntervalSeconds;
+
+    @DataBoundConstructor
+    public VirtualComputerRetentionStrategy(int lingerMinutes, int minimumWarm, int suspendIntervalSeconds) {
+        this.lingerMinutes = Math.max(0, lingerMinutes);
+        this.minimumWarm = Math.max(0, minimumWarm);
+        this.suspendIntervalSeconds = Math.max(0, suspendIntervalSeconds);
+    }
+
+    public int getLingerMinutes() {
+        return lingerMinutes;
+    }
+
+    public int getMinimumWarm() {
+        return minimumWarm;
+    }
+
+    public int getSuspendIntervalSeconds() {
+        return suspendIntervalSeconds;
+    }
+
+    @Override
+    public synchronized long check(SlaveComputer c) {
+        if (c.isOffline()) {
+            if (c.isLaunchSupported() && isInDemand(c.getNode())) {
+                LOGGER.log(Level.INFO, "Launching {0} as there are builds waiting for it", c.getName());
+                c.connect(false);
+            }
+            return 1;
+        }
+        if (!c.isIdle()) {
+            return 1;
+        }
+        long idleMillis = System.currentTimeMillis() - c.getIdleStartMilliseconds();
+        if (idleMillis < TimeUnit.SECONDS.toMillis(lingerMinutes * 60L)) {
+            return 1;
+        }
+        Node node = c.getNode();
+        if (node == null) {
+            return 1;
+        }
+        String[] labels = Util.tokenize(node.getLabelString());
+        for (String label : labels) {
+            if (countOnline(label) <= minimumWarm) {
+                LOGGER.log(Level.FINE, "Keeping {0} warm for label {1}", new Object[]{c.getName(), label});
+                return 1;
+            }
+        }
+        if (!tryAcquireSuspend(labels)) {
+            LOGGER.log(Level.FINE, "Deferring suspend of {0}, another slave was suspended recently", c.getName());
+            return 1;
+        }
+        LOGGER.log(Level.INFO, "Disconnecting {0} after {1} minutes idle",
+                new Object[]{c.getName(), TimeUnit.MILLISECONDS.toSeconds(idleMillis) / 60});
+        c.disconnect();
+        return 1;
+    }
+
+    @Override
+    public void start(SlaveComputer c) {
+        c.connect(false);
+    }
+
+    /**
+     * Returns {@code true} if a queued build could run on the node.
+     */
+    private static boolean isInDemand(Node node) {
+        if (node == null) {
+            return false;
+        }
+        Set<Label> labels = node.getAssignedLabels();
+        for (Queue.BuildableItem item : Hudson.getInstance().getQueue().getBuildableItems()) {
+            Label label = item.task.getAssignedLabel();
+            if (label == null ? node.getMode() == Node.Mode.NORMAL : labels.contains(label)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of online virtual computer slaves with the label.
+     */
+    private static int countOnline(String label) {
+        int count = 0;
+        for (Computer computer : Hudson.getInstance().getComputers()) {
+            Node node = computer.getNode();
+            if (node instanceof VirtualComputerSlave && computer.isOnline()) {
+                for (String l : Util.tokenize(node.getLabelString())) {
+                    if (l.equals(label)) {
+                        count++;
+                        break;
+                    }
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Records a suspend for the labels unless one of them saw a suspend within the suspend interval.
+     */
+    private boolean tryAcquireSuspend(String[] labels) {
+        long now = System.currentTimeMillis();
+        long interval = TimeUnit.SECONDS.toMillis(suspendIntervalSeconds);
+        synchronized (LAST_SUSPEND) {
+            for (String label : labels) {
+                Long last = LAST_SUSPEND.get(label);
+                if (last != null && now - last < interval) {
+                    return false;
+                }
+            }
+            for (String label : labels) {
+                LAST_SUSPEND.put(label, now);
+            }
+            return true;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public Descriptor<RetentionStrategy<?>> getDescriptor() {
+        return Hudson.getInstance().getDescriptor(getClass());
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<RetentionStrategy<?>> {
+        public String getDisplayName() {
+            return "Keep the virtual computer warm between builds";
+        }
+    }
+}
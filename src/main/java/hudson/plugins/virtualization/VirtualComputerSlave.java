@@ -11,17 +11,17 @@ import hudson.slaves.Cloud;
 import hudson.Util;
 import hudson.Extension;
 import hudson.Functions;
+import hudson.util.FormValidation;
 
 import java.util.List;
 import java.util.ArrayList;
-import java.util.SortedSet;
-import java.util.TreeSet;
-import java.util.Set;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 import java.io.IOException;
 
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerResponse;
 import org.apache.commons.collections.list.TreeList;
 import net.java.dev.vcc.api.Computer;
 
@@ -37,22 +37,36 @@ public class VirtualComputerSlave extends Slave {
     public VirtualComputerSlave(String name, String nodeDescription, String remoteFS, String numExecutors,
                                 Mode mode, String labelString, VirtualComputerLauncher launcher, ComputerLauncher delegateLauncher,
                                 RetentionStrategy retentionStrategy, List<? extends NodeProperty<?>> nodeProperties,
-                                String datacenterUri, String computerName)
+                                String datacenterUri, String computerName,
+                                List<? extends ReadinessProbe> readinessProbes, int readyTimeoutSeconds)
             throws
             Descriptor.FormException, IOException {
         super(name, nodeDescription, remoteFS, Util.tryParseNumber(numExecutors, 1).intValue(), mode, labelString,
-                launcher == null ? new VirtualComputerLauncher(delegateLauncher, findVirtualComputer(datacenterUri, computerName)) : launcher,
+                launcher == null ? new VirtualComputerLauncher(delegateLauncher, resolveVirtualComputer(datacenterUri, computerName), readinessProbes, readyTimeoutSeconds) : launcher,
                 retentionStrategy, nodeProperties);
     }
 
-    private static VirtualComputer findVirtualComputer(String datacenterUri, String computerName) {
-        computerName.getClass();
-        for (VirtualComputer c:  ((DescriptorImpl)Hudson.getInstance().getDescriptor(VirtualComputerSlave.class)).getVirtualComputers()) {
-            if ((datacenterUri == null || datacenterUri.equals(c.getDatacenterUri())) && computerName.equals(c.getComputerName())) {
-                return c;
-            }
+    private static VirtualComputer resolveVirtualComputer(String datacenterUri, String computerName)
+            throws Descriptor.FormException, IOException {
+        computerName = Util.fixEmptyAndTrim(computerName);
+        if (computerName == null) {
+            throw new Descriptor.FormException("The computer name is required", "computerName");
+        }
+        if (datacenterUri == null || VirtualDatacenter.getConfigured(datacenterUri) == null) {
+            throw new Descriptor.FormException("No datacenter is configured for " + datacenterUri, "datacenterUri");
+        }
+        VirtualComputer virtualComputer;
+        try {
+            virtualComputer = VirtualComputerIndex.get().resolve(datacenterUri, computerName);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while looking up " + computerName + " in " + datacenterUri);
+        }
+        if (virtualComputer == null) {
+            throw new Descriptor.FormException("There is no virtual computer named " + computerName + " in "
+                    + datacenterUri, "computerName");
         }
-        return null;
+        return virtualComputer;
     }
 
     public ComputerLauncher getDelegateLauncher() {
@@ -64,11 +78,21 @@ public class VirtualComputerSlave extends Slave {
     }
 
     public String getDatacenterUri() {
-        return getVirtualComputer().getDatacenterUri();
+        VirtualComputer virtualComputer = getVirtualComputer();
+        return virtualComputer == null ? null : virtualComputer.getDatacenterUri();
     }
 
     public String getComputerName() {
-        return getVirtualComputer().getComputerName();
+        VirtualComputer virtualComputer = getVirtualComputer();
+        return virtualComputer == null ? null : virtualComputer.getComputerName();
+    }
+
+    public List<ReadinessProbe> getReadinessProbes() {
+        return ((VirtualComputerLauncher)getLauncher()).getReadinessProbes();
+    }
+
+    public int getReadyTimeoutSeconds() {
+        return ((VirtualComputerLauncher)getLauncher()).getReadyTimeoutSeconds();
     }
 
     @Extension
@@ -82,15 +106,25 @@ public class VirtualComputerSlave extends Slave {
             return true;
         }
 
-        public Set<VirtualComputer> getVirtualComputers() {
-            SortedSet<VirtualComputer> result = new TreeSet<VirtualComputer>();
-            for (Cloud cloud: Hudson.getInstance().clouds) {
-                if (cloud instanceof VirtualDatacenter) {
-                    VirtualDatacenter datacenter = VirtualDatacenter.class.cast(cloud);
-                    result.addAll(datacenter.getVirtualComputers().values());
-                }
+        /**
+         * Completes a partly typed computer name, looking only in the selected datacenter if there is one.
+         */
+        public void doAutoCompleteComputerName(@QueryParameter String value, @QueryParameter String datacenterUri,
+                                               StaplerResponse rsp) throws IOException {
+            Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+            VirtualComputerIndex.get().writeCompletions(Util.fixEmpty(datacenterUri), Util.fixNull(value), rsp);
+        }
+
+        /**
+         * Checks that the selected datacenter has a computer with the name entered.
+         */
+        public FormValidation doCheckComputerName(@QueryParameter String value,
+                                                  @QueryParameter String datacenterUri) {
+            if (!Hudson.getInstance().hasPermission(Hudson.ADMINISTER)) {
+                return FormValidation.ok();
             }
-            return result;
+            return VirtualComputerIndex.get()
+                    .checkComputerName(Util.fixEmpty(datacenterUri), Util.fixEmptyAndTrim(value));
         }
 
         public List<VirtualDatacenter> getDatacenters() {
@@ -113,6 +147,10 @@ public class VirtualComputerSlave extends Slave {
             return result;
         }
 
+        public List<Descriptor<ReadinessProbe>> getReadinessProbeDescriptors() {
+            return ReadinessProbe.all();
+        }
+
     }
 
 
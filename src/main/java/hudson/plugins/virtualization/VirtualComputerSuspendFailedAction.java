@@ -0,0 +1,31 @@
+package hudson.plugins.virtualization;
+
+import hudson.model.Action;
+
+/**
+ * Records on a build that its virtual computers could not be suspended after it finished.
+ */
+public class VirtualComputerSuspendFailedAction implements Action {
+
+    private final String log;
+
+    public VirtualComputerSuspendFailedAction(String log) {
+        this.log = log;
+    }
+
+    public String getLog() {
+        return log;
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Virtual computer suspend failed";
+    }
+
+    public String getUrlName() {
+        return null;
+    }
+}
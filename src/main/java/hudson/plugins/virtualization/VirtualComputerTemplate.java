@@ -0,0 +1,131 @@
+package hudson.plugins.virtualization;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Describable;
+import hudson.model.Descriptor;
+import hudson.model.Hudson;
+import hudson.model.Label;
+import hudson.slaves.ComputerLauncher;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+/**
+ * Describes a pool of virtual computers in a {@link VirtualDatacenter} that can be resumed on demand to provide
+ * slaves for a label.
+ */
+public class VirtualComputerTemplate implements Describable<VirtualComputerTemplate> {
+
+    private final String labelString;
+    private final String namePattern;
+    private final String remoteFS;
+    private final String numExecutors;
+    private final ComputerLauncher delegateLauncher;
+    private final String lingerMinutes;
+    private final String minimumWarm;
+    private final String suspendIntervalSeconds;
+    private transient Pattern pattern;
+
+    @DataBoundConstructor
+    public VirtualComputerTemplate(String labelString, String namePattern, String remoteFS, String numExecutors,
+                                   ComputerLauncher delegateLauncher, String lingerMinutes, String minimumWarm,
+                                   String suspendIntervalSeconds) {
+        this.labelString = Util.fixNull(labelString).trim();
+        this.namePattern = namePattern;
+        this.remoteFS = remoteFS;
+        this.numExecutors = numExecutors;
+        this.delegateLauncher = delegateLauncher;
+        this.lingerMinutes = Util.fixEmptyAndTrim(lingerMinutes);
+        this.minimumWarm = Util.fixEmptyAndTrim(minimumWarm);
+        this.suspendIntervalSeconds = Util.fixEmptyAndTrim(suspendIntervalSeconds);
+    }
+
+    public String getLabelString() {
+        return labelString;
+    }
+
+    public String getNamePattern() {
+        return namePattern;
+    }
+
+    public String getRemoteFS() {
+        return remoteFS;
+    }
+
+    public String getNumExecutors() {
+        return numExecutors;
+    }
+
+    public int getNumExecutorsAsInt() {
+        return Util.tryParseNumber(numExecutors, 1).intValue();
+    }
+
+    public ComputerLauncher getDelegateLauncher() {
+        return delegateLauncher;
+    }
+
+    /**
+     * How long an idle slave from this pool stays running before it is suspended, {@code 10} minutes by default.
+     */
+    public String getLingerMinutes() {
+        return lingerMinutes;
+    }
+
+    /**
+     * How many slaves per label are kept running even when idle, none by default.
+     */
+    public String getMinimumWarm() {
+        return minimumWarm;
+    }
+
+    /**
+     * The least time between two suspends of slaves with the same labels, {@code 60} seconds by default.
+     */
+    public String getSuspendIntervalSeconds() {
+        return suspendIntervalSeconds;
+    }
+
+    /**
+     * Returns the retention strategy for the slaves provisioned from this template.
+     */
+    public VirtualComputerRetentionStrategy getRetentionStrategy() {
+        return new VirtualComputerRetentionStrategy(Util.tryParseNumber(lingerMinutes, 10).intValue(),
+                Util.tryParseNumber(minimumWarm, 0).intValue(),
+                Util.tryParseNumber(suspendIntervalSeconds, 60).intValue());
+    }
+
+    /**
+     * Returns {@code true} if slaves created from this template can build jobs tied to the label.
+     *
+     * @param label the label or {@code null} for jobs that can run anywhere.
+     */
+    public boolean matches(Label label) {
+        if (label == null) {
+            return labelString.length() == 0;
+        }
+        return Arrays.asList(labelString.split("\\s+")).contains(label.getName());
+    }
+
+    /**
+     * Returns {@code true} if the virtual computer with the given name belongs to this template's pool.
+     */
+    public synchronized boolean matches(String computerName) {
+        if (pattern == null) {
+            pattern = Pattern.compile(namePattern);
+        }
+        return pattern.matcher(computerName).matches();
+    }
+
+    public Descriptor<VirtualComputerTemplate> getDescriptor() {
+        return Hudson.getInstance().getDescriptor(getClass());
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends Descriptor<VirtualComputerTemplate> {
+        public String getDisplayName() {
+            return "Virtual computer pool";
+        }
+    }
+}
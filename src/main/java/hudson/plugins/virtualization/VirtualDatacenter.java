@@ -2,11 +2,18 @@ package hudson.plugins.virtualization;
 
 import hudson.util.Secret;
 import hudson.util.FormValidation;
+import hudson.util.NullStream;
+import hudson.util.StreamTaskListener;
 import hudson.model.Descriptor;
 import hudson.model.Hudson;
 import hudson.model.Label;
+import hudson.model.Node;
 import hudson.Extension;
+import hudson.Functions;
+import hudson.Util;
 import hudson.slaves.Cloud;
+import hudson.slaves.ComputerLauncher;
+import hudson.slaves.NodeProperty;
 import hudson.slaves.NodeProvisioner;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
@@ -16,23 +23,35 @@ import java.util.HashMap;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 import java.util.ArrayList;
-import java.util.Set;
-import java.util.HashSet;
 import java.util.TreeMap;
 import java.util.SortedMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.io.File;
 import java.io.IOException;
 
 import net.java.dev.vcc.api.Computer;
 import net.java.dev.vcc.api.ManagedObjectId;
 import net.java.dev.vcc.api.Datacenter;
 import net.java.dev.vcc.api.DatacenterManager;
+import net.java.dev.vcc.api.PowerState;
 
 import javax.servlet.ServletException;
 
@@ -47,28 +66,180 @@ public class VirtualDatacenter extends Cloud {
     private final String username;
     private final Secret password;
     private final int refreshSeconds;
+    private final int maxPowerOperations;
+    private final int powerOperationsPerMinute;
+    private final boolean buildWrapperFirst;
+    private final String inventoryScope;
+    private final List<VirtualComputerTemplate> templates;
 
-    private transient Map<ManagedObjectId<Computer>, Computer> computers = null;
-    private transient SortedMap<String, VirtualComputer> virtualComputers = null;
-    private transient long nextRefresh = 0;
-    private transient Thread updatingCacheThread = null;
-    private transient Datacenter datacenter = null;
+    /**
+     * How long readers are prepared to wait for the very first inventory load before getting an empty inventory.
+     */
+    private static final long INITIAL_LOAD_WAIT_MILLIS =
+            Long.getLong(VirtualDatacenter.class.getName() + ".initialLoadWaitMillis", 0L);
+
+    /**
+     * How long the power state of a computer is shared between callers asking for it.
+     */
+    private static final long STATE_FRESH_MILLIS =
+            Long.getLong(VirtualDatacenter.class.getName() + ".stateFreshMillis", 1000L);
+
+    /**
+     * How many {@link Computer} handles each datacenter keeps between refreshes.
+     */
+    private static final int HANDLE_CACHE_SIZE =
+            Integer.getInteger(VirtualDatacenter.class.getName() + ".handleCacheSize", 256);
+
+    /**
+     * The shortest time between inventory refreshes, used while the inventory is changing.
+     */
+    private static final long MIN_REFRESH_MILLIS =
+            Long.getLong(VirtualDatacenter.class.getName() + ".minRefreshMillis", 5000L);
+
+    /**
+     * How many times the configured refresh interval an unchanging inventory may back off to.
+     */
+    private static final long MAX_REFRESH_BACKOFF =
+            Long.getLong(VirtualDatacenter.class.getName() + ".maxRefreshBackoff", 8L);
+
+    private static final Random RANDOM = new Random();
+
+    /**
+     * How long an inventory refresh may run before it is cancelled.
+     */
+    private static final long REFRESH_TIMEOUT_SECONDS =
+            Long.getLong(VirtualDatacenter.class.getName() + ".refreshTimeoutSeconds", 600L);
+
+    /**
+     * The last successfully loaded inventory. Replaced atomically by the refresh, never modified in place.
+     */
+    private transient AtomicReference<Inventory> inventory;
+    private transient AtomicReference<FutureTask<Inventory>> pendingRefresh;
+    private transient CountDownLatch initialLoad;
+    private transient DatacenterMetrics metrics;
+    private transient DatacenterSession session;
+    private transient ConcurrentMap<String, ProvisionFuture> provisioning;
+    private transient PowerStateWatcher powerStateWatcher = null;
+    private transient PowerOperationScheduler powerOperationScheduler;
+    private transient PowerOperationRegistry powerOperations;
+    private transient SingleFlight<String, PowerState> powerStates;
+    private transient ComputerHandleCache handles;
+    private transient Pattern scope;
+    private transient PowerStateRecorder recorder;
+    private transient volatile long refreshIntervalMillis;
 
     @DataBoundConstructor
-    public VirtualDatacenter(String datacenterUri, String username, String password, int refreshSeconds) {
+    public VirtualDatacenter(String datacenterUri, String username, String password, int refreshSeconds,
+                             int maxPowerOperations, int powerOperationsPerMinute,
+                             boolean buildWrapperFirst, String inventoryScope,
+                             List<VirtualComputerTemplate> templates) {
+        this(datacenterUri, username, password, refreshSeconds, maxPowerOperations, powerOperationsPerMinute,
+                buildWrapperFirst, inventoryScope, templates, DatacenterSession.Connector.DEFAULT);
+    }
+
+    /**
+     * Creates a datacenter that establishes its sessions through the given connector rather than through vcc-api's
+     * {@link net.java.dev.vcc.api.DatacenterManager}, so that it can be run against a datacenter that is not there.
+     */
+    VirtualDatacenter(String datacenterUri, String username, String password, int refreshSeconds,
+                      int maxPowerOperations, int powerOperationsPerMinute, boolean buildWrapperFirst,
+                      String inventoryScope, List<VirtualComputerTemplate> templates,
+                      DatacenterSession.Connector connector) {
         super("vcc-api");
         this.datacenterUri = datacenterUri;
         this.username = username;
         this.password = Secret.fromString(password.trim());
         this.refreshSeconds = refreshSeconds <= 0 ? 60 : refreshSeconds;
-        updateComputersCache();
+        this.maxPowerOperations = Math.max(0, maxPowerOperations);
+        this.powerOperationsPerMinute = Math.max(0, powerOperationsPerMinute);
+        this.buildWrapperFirst = buildWrapperFirst;
+        this.inventoryScope = Util.fixEmptyAndTrim(inventoryScope);
+        this.templates = templates == null
+                ? Collections.<VirtualComputerTemplate>emptyList()
+                : new ArrayList<VirtualComputerTemplate>(templates);
+        init(connector);
     }
 
     protected Object readResolve() {
-        updateComputersCache();
+        init(DatacenterSession.Connector.DEFAULT);
         return this;
     }
 
+    private void init(DatacenterSession.Connector connector) {
+        inventory = new AtomicReference<Inventory>();
+        pendingRefresh = new AtomicReference<FutureTask<Inventory>>();
+        initialLoad = new CountDownLatch(1);
+        metrics = new DatacenterMetrics();
+        session = new DatacenterSession(this, password.toString(), metrics, connector);
+        provisioning = new ConcurrentHashMap<String, ProvisionFuture>();
+        powerStates = new SingleFlight<String, PowerState>(STATE_FRESH_MILLIS);
+        handles = new ComputerHandleCache(HANDLE_CACHE_SIZE);
+        recorder = new PowerStateRecorder() {
+            public void recordState(String name, PowerState state) {
+                Inventory current = inventory.get();
+                ComputerRecord record = current == null ? null : current.records.get(name);
+                if (record != null) {
+                    record.recordState(state);
+                }
+            }
+        };
+        scope = null;
+        if (inventoryScope != null) {
+            try {
+                scope = Pattern.compile(inventoryScope);
+            } catch (PatternSyntaxException e) {
+                LOGGER.log(Level.WARNING, "Ignoring the invalid inventory scope of " + datacenterUri, e);
+            }
+        }
+        powerOperationScheduler = new PowerOperationScheduler(datacenterUri, maxPowerOperations,
+                powerOperationsPerMinute, buildWrapperFirst
+                ? PowerOperationScheduler.Source.BUILD_WRAPPER
+                : PowerOperationScheduler.Source.LAUNCHER);
+        powerOperations = new PowerOperationRegistry(powerOperationScheduler, metrics, getPowerStateWatcher(),
+                recorder);
+        loadSnapshot();
+        updateComputersCache();
+    }
+
+    /**
+     * Returns the file holding the last inventory of this datacenter.
+     */
+    private InventorySnapshotFile getSnapshotFile() {
+        return new InventorySnapshotFile(new File(new File(Hudson.getInstance().getRootDir(), "virtualization"),
+                Util.getDigestOf(datacenterUri + '\n' + username) + ".inventory"));
+    }
+
+    /**
+     * Publishes the inventory saved by the last successful refresh before this restart. It is already expired, so
+     * the first reader starts a refresh, but until that completes readers see the saved computers rather than none.
+     * Computer ids and handles cannot be saved, so resolving a computer still waits for the refresh.
+     */
+    private void loadSnapshot() {
+        List<String> names;
+        try {
+            names = getSnapshotFile().read();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not read the saved inventory of " + datacenterUri, e);
+            return;
+        }
+        if (names == null) {
+            return;
+        }
+        Map<String, ComputerRecord> records = new HashMap<String, ComputerRecord>();
+        SortedMap<String, VirtualComputer> virtualComputers = new TreeMap<String, VirtualComputer>();
+        for (String name : names) {
+            if (isInScope(name)) {
+                records.put(name, new ComputerRecord(name, null));
+                virtualComputers.put(name, new VirtualComputer(this, name));
+            }
+        }
+        Inventory snapshot = new Inventory(records, virtualComputers, 0);
+        if (inventory.compareAndSet(null, snapshot)) {
+            initialLoad.countDown();
+            updateIndex(null, snapshot);
+            LOGGER.log(Level.FINE, "Loaded {0} saved computers of {1}", new Object[]{names.size(), datacenterUri});
+        }
+    }
 
     public String getDatacenterUri() {
         return datacenterUri;
@@ -86,97 +257,619 @@ public class VirtualDatacenter extends Cloud {
         return refreshSeconds;
     }
 
-    private synchronized Thread updateComputersCache() {
-        if (updatingCacheThread == null || !updatingCacheThread.isAlive()) {
-            updatingCacheThread = new Thread() {
-                @Override
-                public void run() {
-                    LOGGER.info("Starting cache update");
-                    Map<ManagedObjectId<Computer>, Computer> computers
-                            = new HashMap<ManagedObjectId<Computer>, Computer>();
-                    SortedMap<String, VirtualComputer> virtualComputers = new TreeMap<String, VirtualComputer>();
-                    Set<String> removeNames = new HashSet<String>();
-                    synchronized (VirtualDatacenter.this) {
-                        if (VirtualDatacenter.this.virtualComputers != null) {
-                            virtualComputers.putAll(VirtualDatacenter.this.virtualComputers);
-                            removeNames.addAll(VirtualDatacenter.this.virtualComputers.keySet());
-                        }
+    /**
+     * The most power operations in flight against the datacenter at once, {@code 0} meaning no limit.
+     */
+    public int getMaxPowerOperations() {
+        return maxPowerOperations;
+    }
+
+    /**
+     * The sustained rate at which power operations may be issued, {@code 0} meaning no limit.
+     */
+    public int getPowerOperationsPerMinute() {
+        return powerOperationsPerMinute;
+    }
+
+    /**
+     * Whether queued power operations for build wrappers are admitted before those for launching slaves.
+     */
+    public boolean isBuildWrapperFirst() {
+        return buildWrapperFirst;
+    }
+
+    /**
+     * The regular expression that the names of the computers Hudson should know about must match, or {@code null}
+     * for all the computers in the datacenter.
+     */
+    public String getInventoryScope() {
+        return inventoryScope;
+    }
+
+    private boolean isInScope(String name) {
+        return scope == null || scope.matcher(name).matches();
+    }
+
+    PowerOperationScheduler getPowerOperationScheduler() {
+        return powerOperationScheduler;
+    }
+
+    /**
+     * Returns the registry through which all power operations on the computers of this datacenter are issued.
+     */
+    PowerOperationRegistry getPowerOperations() {
+        return powerOperations;
+    }
+
+    /**
+     * Returns the number of power operations waiting to be admitted.
+     */
+    public int getQueuedPowerOperations() {
+        return powerOperationScheduler.getQueueLength();
+    }
+
+    public DatacenterMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the number of sessions to the datacenter that are currently open, either {@code 0} or {@code 1}.
+     */
+    public int getOpenConnectionCount() {
+        return session.isOpen() ? 1 : 0;
+    }
+
+    /**
+     * Returns {@code true} if connection attempts are being refused because the datacenter has been unreachable.
+     */
+    public boolean isUnreachable() {
+        return session.isCircuitOpen();
+    }
+
+    public List<VirtualComputerTemplate> getTemplates() {
+        return templates == null
+                ? Collections.<VirtualComputerTemplate>emptyList()
+                : Collections.unmodifiableList(templates);
+    }
+
+    /**
+     * Starts a refresh of the inventory unless one is already running.
+     *
+     * @return the running refresh.
+     */
+    private Future<Inventory> updateComputersCache() {
+        FutureTask<Inventory> task = new FutureTask<Inventory>(new Callable<Inventory>() {
+            public Inventory call() throws Exception {
+                return loadInventory();
+            }
+        }) {
+            @Override
+            protected void done() {
+                pendingRefresh.compareAndSet(this, null);
+            }
+        };
+        while (!pendingRefresh.compareAndSet(null, task)) {
+            FutureTask<Inventory> running = pendingRefresh.get();
+            if (running != null && running.isDone()) {
+                // finished, but its waiters may be released before done() has cleared it
+                pendingRefresh.compareAndSet(running, null);
+            } else if (running != null) {
+                return running;
+            }
+        }
+        try {
+            return VirtualizationExecutor.get().submit(task, REFRESH_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (RejectedExecutionException e) {
+            LOGGER.log(Level.WARNING, "Could not schedule an inventory refresh of " + datacenterUri, e);
+            task.cancel(false);
+            return task;
+        }
+    }
+
+    private Inventory loadInventory() throws IOException, InterruptedException {
+        LOGGER.fine("Starting cache update");
+        long start = System.currentTimeMillis();
+        boolean ok = false;
+        metrics.refreshStarted();
+        try {
+            Inventory previous = inventory.get();
+            Map<String, ComputerRecord> records = new HashMap<String, ComputerRecord>();
+            SortedMap<String, VirtualComputer> virtualComputers = new TreeMap<String, VirtualComputer>();
+            Datacenter datacenter = borrowConnection();
+            int skipped = 0;
+            try {
+                for (Computer c : datacenter.getAllComputers()) {
+                    String name = c.getName();
+                    if (!isInScope(name)) {
+                        // dropped straight away so that the proxy does not outlive the iteration
+                        skipped++;
+                        continue;
                     }
-                    try {
-                        getConnection();
-                        for (Computer c : datacenter.getAllComputers()) {
-                            computers.put(c.getId(), c);
-                            if (!virtualComputers.containsKey(c.getName())) {
-                                virtualComputers.put(c.getName(), new VirtualComputer(VirtualDatacenter.this, c.getName()));
-                            }
-                            removeNames.remove(c.getName());
-                        }
-                        for (String name: removeNames) {
-                            virtualComputers.remove(name);
-                        }
-                        LOGGER.info("Saving updated cache");
-                        synchronized (VirtualDatacenter.this) {
-                            VirtualDatacenter.this.computers = computers;
-                            VirtualDatacenter.this.virtualComputers = virtualComputers;
-                            nextRefresh = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(refreshSeconds);
-                            updatingCacheThread = null;
-                        }
-                    } catch (IOException e) {
-                        LogRecord rec = new LogRecord(Level.SEVERE, "Cannot connect to datacenter {0} as {1}/******");
-                        rec.setThrown(e);
-                        rec.setParameters(new Object[]{datacenterUri, username});
-                        LOGGER.log(rec);
-                    } catch (InterruptedException e) {
-                        LogRecord rec = new LogRecord(Level.SEVERE, "Cannot connect to datacenter {0} as {1}/******");
-                        rec.setThrown(e);
-                        rec.setParameters(new Object[]{datacenterUri, username});
-                        LOGGER.log(rec);
-                    } finally {
-                        LOGGER.info("Finished updating cache");
+                    ManagedObjectId<Computer> id = c.getId();
+                    ComputerRecord record = new ComputerRecord(name, id);
+                    ComputerRecord old = previous == null ? null : previous.records.get(name);
+                    if (old != null && id.equals(old.getId())) {
+                        record.copyState(old);
                     }
+                    records.put(record.getName(), record);
+                    handles.offer(record.getName(), c);
+                    VirtualComputer virtualComputer = previous == null ? null : previous.virtualComputers.get(name);
+                    virtualComputers.put(record.getName(), virtualComputer == null
+                            ? new VirtualComputer(VirtualDatacenter.this, record.getName())
+                            : virtualComputer);
                 }
-            };
-            updatingCacheThread.start();
+            } catch (RuntimeException e) {
+                session.invalidate(datacenter);
+                throw e;
+            } finally {
+                releaseConnection(datacenter);
+            }
+            if (skipped > 0) {
+                LOGGER.log(Level.FINE, "Ignored {0} computers of {1} outside the inventory scope",
+                        new Object[]{skipped, datacenterUri});
+            }
+            handles.retainAll(records.keySet());
+            boolean changed = previous == null
+                    || !previous.virtualComputers.keySet().equals(virtualComputers.keySet());
+            Inventory result = new Inventory(records, virtualComputers,
+                    System.currentTimeMillis() + nextRefreshInterval(changed));
+            inventory.set(result);
+            initialLoad.countDown();
+            updateIndex(previous, result);
+            if (changed) {
+                try {
+                    getSnapshotFile().write(virtualComputers.keySet());
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Could not save the inventory of " + datacenterUri, e);
+                }
+            }
+            metrics.refreshFinished(System.currentTimeMillis() - start, records.size());
+            ok = true;
+            return result;
+        } catch (IOException e) {
+            LogRecord rec = new LogRecord(Level.SEVERE, "Cannot connect to datacenter {0} as {1}/******");
+            rec.setThrown(e);
+            rec.setParameters(new Object[]{datacenterUri, username});
+            LOGGER.log(rec);
+            throw e;
+        } catch (InterruptedException e) {
+            LogRecord rec = new LogRecord(Level.SEVERE, "Cannot connect to datacenter {0} as {1}/******");
+            rec.setThrown(e);
+            rec.setParameters(new Object[]{datacenterUri, username});
+            LOGGER.log(rec);
+            throw e;
+        } finally {
+            if (!ok) {
+                metrics.refreshFailed();
+            }
+            LOGGER.fine("Finished updating cache");
         }
-        return updatingCacheThread;
     }
 
+    /**
+     * Brings the plugin wide {@link VirtualComputerIndex} up to date with a newly loaded inventory.
+     */
+    private void updateIndex(Inventory previous, Inventory current) {
+        VirtualComputerIndex index = VirtualComputerIndex.get();
+        if (previous == null || !index.isOwner(this)) {
+            index.replace(this, current.virtualComputers.values());
+            return;
+        }
+        List<VirtualComputer> added = new ArrayList<VirtualComputer>();
+        for (Map.Entry<String, VirtualComputer> entry : current.virtualComputers.entrySet()) {
+            if (!previous.virtualComputers.containsKey(entry.getKey())) {
+                added.add(entry.getValue());
+            }
+        }
+        List<String> removed = new ArrayList<String>();
+        for (String name : previous.virtualComputers.keySet()) {
+            if (!current.virtualComputers.containsKey(name)) {
+                removed.add(name);
+            }
+        }
+        index.update(this, added, removed);
+    }
+
+    /**
+     * Works out how long the inventory just loaded stays fresh. While computers are coming and going, or power
+     * operations are in flight, the inventory is refreshed four times as often as configured. Each refresh that finds
+     * nothing new doubles the interval, up to {@link #MAX_REFRESH_BACKOFF} times the configured interval. A random
+     * tenth either way keeps the refreshes of different clouds from lining up.
+     *
+     * @param changed whether the refresh found computers that were added or removed.
+     */
+    private long nextRefreshInterval(boolean changed) {
+        long configured = TimeUnit.SECONDS.toMillis(refreshSeconds);
+        long interval;
+        if (changed || metrics.getPowerOperationsInFlight() > 0) {
+            interval = Math.max(MIN_REFRESH_MILLIS, configured / 4);
+        } else if (refreshIntervalMillis == 0) {
+            interval = configured;
+        } else {
+            interval = Math.min(refreshIntervalMillis * 2, configured * MAX_REFRESH_BACKOFF);
+        }
+        refreshIntervalMillis = interval;
+        return interval + (long) ((RANDOM.nextDouble() - 0.5) * interval / 5);
+    }
+
+    /**
+     * Returns the open session to the datacenter. The session is shared, use {@link #borrowConnection()} for work
+     * that must not see the session closed by the keep-alive half way through.
+     */
     public Datacenter getConnection() throws IOException, InterruptedException {
-        LOGGER.info("Checking for connection");
+        Datacenter datacenter = borrowConnection();
+        releaseConnection(datacenter);
+        return datacenter;
+    }
+
+    /**
+     * Borrows the session. It must be given back with {@link #releaseConnection(Datacenter)}.
+     */
+    public Datacenter borrowConnection() throws IOException, InterruptedException {
+        return session.borrow();
+    }
+
+    /**
+     * Returns a session borrowed with {@link #borrowConnection()}.
+     */
+    public void releaseConnection(Datacenter datacenter) {
+        session.release(datacenter);
+    }
+
+    /**
+     * Returns {@code true} once this datacenter has been replaced or removed by a configuration change and has
+     * nothing left in flight, so that its session can be closed.
+     */
+    boolean isRetired() {
+        Hudson hudson = Hudson.getInstance();
+        if (hudson != null && hudson.clouds.contains(this)) {
+            return false;
+        }
+        if (pendingRefresh.get() != null || metrics.getPowerOperationsInFlight() > 0) {
+            return false;
+        }
+        for (ProvisionFuture future : provisioning.values()) {
+            if (!future.isDone()) {
+                return false;
+            }
+        }
+        synchronized (this) {
+            return powerStateWatcher == null || powerStateWatcher.getWatchedCount() == 0;
+        }
+    }
+
+    /**
+     * Returns the configured datacenter with the given URI.
+     *
+     * @return the datacenter or {@code null} if there is none.
+     */
+    static VirtualDatacenter getConfigured(String datacenterUri) {
+        for (Cloud cloud : Hudson.getInstance().clouds) {
+            if (cloud instanceof VirtualDatacenter
+                    && ((VirtualDatacenter) cloud).getDatacenterUri().equals(datacenterUri)) {
+                return (VirtualDatacenter) cloud;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the shared watcher for power state transitions of the computers in this datacenter.
+     */
+    public synchronized PowerStateWatcher getPowerStateWatcher() {
+        if (powerStateWatcher == null) {
+            powerStateWatcher = new PowerStateWatcher(datacenterUri, recorder);
+        }
+        return powerStateWatcher;
+    }
+
+    /**
+     * Returns the last good inventory without blocking, starting a background refresh if it has expired. Only when
+     * nothing has been loaded yet will this wait (for at most {@link #INITIAL_LOAD_WAIT_MILLIS}) for the first load.
+     *
+     * @return the inventory or {@code null} if nothing has been loaded yet.
+     */
+    private Inventory getInventory() {
+        Inventory result = inventory.get();
+        if (result == null || System.currentTimeMillis() > result.expires) {
+            updateComputersCache();
+        }
+        if (result == null && INITIAL_LOAD_WAIT_MILLIS > 0) {
+            try {
+                initialLoad.await(INITIAL_LOAD_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            result = inventory.get();
+        }
+        return result;
+    }
+
+    /**
+     * Returns the power state of a computer. Concurrent callers asking about the same computer share one query to
+     * the datacenter, and its answer is reused for a short while afterwards. The answer is remembered as the
+     * computer's last known state in the inventory.
+     *
+     * @param name     the name of the computer.
+     * @param computer the handle of the computer, as returned by {@link #getComputer(String)}.
+     * @throws IOException if the datacenter could not be queried.
+     */
+    public PowerState getPowerState(final String name, final Computer computer)
+            throws IOException, InterruptedException {
         try {
-            synchronized (this) {
-                if (datacenter == null || !datacenter.isOpen()) {
-                    LOGGER.info("Reconnect");
-                    datacenter = MakeConnectionThread.getConnection(datacenterUri, username, password.toString());
+            return powerStates.get(name, new Callable<PowerState>() {
+                public PowerState call() throws Exception {
+                    PowerState state = computer.getState();
+                    recorder.recordState(name, state);
+                    return state;
                 }
-                return datacenter;
+            });
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            IOException ioe = new IOException("Could not query the state of " + name);
+            ioe.initCause(e.getCause());
+            throw ioe;
+        }
+    }
+
+    /**
+     * Returns what is known about each computer in the datacenter, keyed by name.
+     */
+    public Map<String, ComputerRecord> getComputerRecords() {
+        Inventory inventory = getInventory();
+        return inventory == null ? Collections.<String, ComputerRecord>emptyMap() : inventory.records;
+    }
+
+    public Map<String, VirtualComputer> getVirtualComputers() {
+        Inventory inventory = getInventory();
+        return inventory == null ? Collections.<String, VirtualComputer>emptyMap() : inventory.virtualComputers;
+    }
+
+    /**
+     * Returns the names of computers that start with the prefix, in name order. The inventory is kept sorted by name,
+     * so only the matching names are visited.
+     *
+     * @param prefix the start of the name.
+     * @param limit  the most names to return.
+     */
+    public List<String> findComputerNames(String prefix, int limit) {
+        Inventory inventory = getInventory();
+        List<String> result = new ArrayList<String>();
+        if (inventory == null) {
+            return result;
+        }
+        for (String name : inventory.virtualComputers.tailMap(prefix).keySet()) {
+            if (result.size() >= limit || !name.startsWith(prefix)) {
+                break;
             }
+            result.add(name);
+        }
+        return result;
+    }
+
+    /**
+     * Resolves a computer by name.
+     * <p/>
+     * A cached handle is returned directly. If the inventory is stale the cached handle is revalidated by asking the
+     * datacenter for its name, which only touches the single computer. A computer in the inventory without a cached
+     * handle is resolved from the id in its record, again touching only that computer. Only a name that the inventory
+     * does not know, or a record loaded from the saved inventory which has no id, waits for a full inventory refresh.
+     *
+     * @param name the name of the computer.
+     * @return the computer or {@code null} if the datacenter does not have a computer with that name.
+     */
+    public Computer getComputer(String name) throws IOException, InterruptedException {
+        long start = System.currentTimeMillis();
+        try {
+            return lookupComputer(name);
         } finally {
-            LOGGER.info("Have connection");
+            metrics.recordLookup(System.currentTimeMillis() - start);
+        }
+    }
 
+    private Computer lookupComputer(String name) throws IOException, InterruptedException {
+        Inventory current = inventory.get();
+        ComputerRecord record = current == null ? null : current.records.get(name);
+        Computer c = record == null ? null : handles.get(name);
+        if (c != null && System.currentTimeMillis() <= current.expires) {
+            return c;
+        }
+        if (c != null) {
+            try {
+                // the handle itself shows whether the computer is still there, the next reader of the expired
+                // inventory starts the full refresh
+                if (name.equals(c.getName())) {
+                    return c;
+                }
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.FINE, "Cached handle for " + name + " is no longer valid", e);
+            }
+            handles.remove(name);
         }
+        if (record == null || record.getId() == null) {
+            current = awaitRefresh();
+            record = current == null ? null : current.records.get(name);
+            if (record == null) {
+                return null;
+            }
+            // the refresh offered the handle of the name that was asked for
+            c = handles.get(name);
+            if (c != null || record.getId() == null) {
+                return c;
+            }
+        }
+        return resolve(record);
     }
 
-    public synchronized Map<ManagedObjectId<Computer>, Computer> getComputers() {
-        if (computers == null || System.currentTimeMillis() > nextRefresh) {
-            updateComputersCache();
+    /**
+     * Resolves the handle of a single computer from its id and caches it.
+     *
+     * @return the computer or {@code null} if the datacenter no longer has it.
+     */
+    private Computer resolve(ComputerRecord record) throws IOException, InterruptedException {
+        Datacenter datacenter = borrowConnection();
+        try {
+            Computer c = datacenter.getComputer(record.getId());
+            if (c == null || !record.getName().equals(c.getName())) {
+                // removed or renamed, the next refresh will catch up
+                return null;
+            }
+            handles.put(record.getName(), c);
+            return c;
+        } catch (RuntimeException e) {
+            session.invalidate(datacenter);
+            throw e;
+        } finally {
+            releaseConnection(datacenter);
         }
-        return computers == null ? new HashMap<ManagedObjectId<Computer>, Computer>() : computers;
     }
 
-    public synchronized Map<String, VirtualComputer> getVirtualComputers() {
-        if (virtualComputers == null || System.currentTimeMillis() > nextRefresh) {
-            updateComputersCache();
+    /**
+     * Waits for the running inventory refresh, starting one if none is running.
+     *
+     * @return the refreshed inventory.
+     */
+    Inventory awaitRefresh() throws IOException, InterruptedException {
+        Inventory current;
+        try {
+            current = updateComputersCache().get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            IOException ioe = new IOException("Could not refresh the inventory of " + datacenterUri);
+            ioe.initCause(cause);
+            throw ioe;
+        } catch (CancellationException e) {
+            throw new IOException("Inventory refresh of " + datacenterUri + " was cancelled");
         }
-        return virtualComputers == null ? new HashMap<String, VirtualComputer>() : virtualComputers;
+        return current == null ? inventory.get() : current;
     }
 
-    public Collection<NodeProvisioner.PlannedNode> provision(Label label, int i) {
-        return Collections.emptySet();
+    /**
+     * Refreshes what is known about a single computer without enumerating the datacenter: the cached handle is
+     * checked against the datacenter and the computer's power state is read afresh. Only if there is no usable handle
+     * does this fall back to {@link #getComputer(String)}.
+     *
+     * @param name the name of the computer.
+     * @return the computer or {@code null} if the datacenter does not have a computer with that name.
+     */
+    public Computer refreshComputer(String name) throws IOException, InterruptedException {
+        Inventory current = inventory.get();
+        ComputerRecord record = current == null ? null : current.records.get(name);
+        Computer c = record == null ? null : handles.get(name);
+        if (c != null) {
+            try {
+                if (name.equals(c.getName())) {
+                    record.recordState(c.getState());
+                    return c;
+                }
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.FINE, "Cached handle for " + name + " is no longer valid", e);
+            }
+            handles.remove(name);
+        }
+        return getComputer(name);
+    }
+
+    /**
+     * Provisions slaves by resuming virtual computers from the pools whose templates match the label. Virtual
+     * computers that are already running are handed out first as they can be used without waiting for a resume.
+     */
+    public Collection<NodeProvisioner.PlannedNode> provision(Label label, int excessWorkload) {
+        List<NodeProvisioner.PlannedNode> result = new ArrayList<NodeProvisioner.PlannedNode>();
+        Inventory current = getInventory();
+        if (current == null) {
+            return result;
+        }
+        for (VirtualComputerTemplate template : getTemplates()) {
+            if (excessWorkload <= 0) {
+                break;
+            }
+            if (!template.matches(label)) {
+                continue;
+            }
+            List<String> notRunning = new ArrayList<String>();
+            for (ComputerRecord record : current.records.values()) {
+                if (excessWorkload <= 0) {
+                    break;
+                }
+                String name = record.getName();
+                if (!template.matches(name) || !isAvailableForProvisioning(name)) {
+                    continue;
+                }
+                // the last known state only decides the order, the provisioning checks the actual state
+                if (!PowerState.RUNNING.equals(record.getLastState())) {
+                    notRunning.add(name);
+                    continue;
+                }
+                NodeProvisioner.PlannedNode node = provision(template, current, name);
+                if (node != null) {
+                    result.add(node);
+                    excessWorkload -= node.numExecutors;
+                }
+            }
+            for (String name : notRunning) {
+                if (excessWorkload <= 0) {
+                    break;
+                }
+                NodeProvisioner.PlannedNode node = provision(template, current, name);
+                if (node != null) {
+                    result.add(node);
+                    excessWorkload -= node.numExecutors;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns {@code true} if the named virtual computer is neither a slave already nor being provisioned.
+     */
+    private boolean isAvailableForProvisioning(String name) {
+        if (Hudson.getInstance().getNode(name) != null) {
+            return false;
+        }
+        if (VirtualComputerLeaseManager.get().isLeased(datacenterUri, name)) {
+            return false;
+        }
+        ProvisionFuture pending = provisioning.get(name);
+        if (pending == null) {
+            return true;
+        }
+        if (pending.isAwaitingNode()) {
+            return false;
+        }
+        provisioning.remove(name, pending);
+        return true;
+    }
+
+    private NodeProvisioner.PlannedNode provision(VirtualComputerTemplate template, Inventory current, String name) {
+        ProvisionFuture future = new ProvisionFuture(new ProvisionTask(template, current.virtualComputers.get(name)));
+        if (provisioning.putIfAbsent(name, future) != null) {
+            return null;
+        }
+        try {
+            VirtualizationExecutor.get().submitPowerOperation(future);
+        } catch (RejectedExecutionException e) {
+            provisioning.remove(name, future);
+            LOGGER.log(Level.WARNING, "Could not provision " + name, e);
+            return null;
+        }
+        LOGGER.log(Level.INFO, "Provisioning virtual computer {0} from {1}", new Object[]{name, datacenterUri});
+        return new NodeProvisioner.PlannedNode(name, future, template.getNumExecutorsAsInt());
     }
 
     public boolean canProvision(Label label) {
-        return false;  //To change body of implemented methods use File | Settings | File Templates.
+        for (VirtualComputerTemplate template : getTemplates()) {
+            if (template.matches(label)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     @Override
@@ -195,6 +888,40 @@ public class VirtualDatacenter extends Cloud {
 
     @Extension
     public static final class DescriptorImpl extends Descriptor<Cloud> {
+        public List<Descriptor<ComputerLauncher>> getComputerLauncherDescriptors() {
+            List<Descriptor<ComputerLauncher>> result = new ArrayList<Descriptor<ComputerLauncher>>();
+            for (Descriptor<ComputerLauncher> launcher : Functions.getComputerLauncherDescriptors()) {
+                if (!VirtualComputerLauncher.DESCRIPTOR.getClass().isAssignableFrom(launcher.getClass())) {
+                    result.add(launcher);
+                }
+            }
+            return result;
+        }
+
+        public FormValidation doCheckNamePattern(@QueryParameter String value) {
+            if (Util.fixEmptyAndTrim(value) == null) {
+                return FormValidation.error("Name pattern is not specified");
+            }
+            try {
+                Pattern.compile(value);
+                return FormValidation.ok();
+            } catch (PatternSyntaxException e) {
+                return FormValidation.error(e.getMessage());
+            }
+        }
+
+        public FormValidation doCheckInventoryScope(@QueryParameter String value) {
+            if (Util.fixEmptyAndTrim(value) == null) {
+                return FormValidation.ok();
+            }
+            try {
+                Pattern.compile(value.trim());
+                return FormValidation.ok();
+            } catch (PatternSyntaxException e) {
+                return FormValidation.error(e.getMessage());
+            }
+        }
+
         public final ConcurrentMap<String,VirtualDatacenter> datacenters = new ConcurrentHashMap<String, VirtualDatacenter>();
 
         public VirtualDatacenter lookupDatacenter(String username, String datacenterUri) {
@@ -229,7 +956,7 @@ public class VirtualDatacenter extends Cloud {
                 if (password == null) {
                     return FormValidation.error("Password is not specified");
                 }
-                Datacenter datacenter = MakeConnectionThread
+                Datacenter datacenter = MakeConnection
                         .getConnection(datacenterUri, username, Secret.fromString(password).toString());
                 datacenter.close();
                 return FormValidation.ok("Connected successfully");
@@ -252,51 +979,160 @@ public class VirtualDatacenter extends Cloud {
 
     }
 
-    static final class MakeConnectionThread extends Thread {
+    /**
+     * Resumes a virtual computer and creates the slave for it.
+     */
+    private final class ProvisionTask implements Callable<Node> {
+        private final VirtualComputerTemplate template;
+        private final VirtualComputer virtualComputer;
+
+        private ProvisionTask(VirtualComputerTemplate template, VirtualComputer virtualComputer) {
+            this.template = template;
+            this.virtualComputer = virtualComputer;
+        }
+
+        public Node call() throws Exception {
+            String name = virtualComputer.getName();
+            Computer computer = getComputer(name);
+            if (computer == null) {
+                throw new IOException("Virtual computer " + name + " is no longer in " + datacenterUri);
+            }
+            if (!PowerState.RUNNING.equals(getPowerState(name, computer))) {
+                LOGGER.log(Level.INFO, "Resuming virtual computer {0}", name);
+                powerOperations.transition(name, computer, PowerState.RUNNING,
+                        PowerOperationScheduler.Source.LAUNCHER, new StreamTaskListener(new NullStream()),
+                        TimeUnit.SECONDS.toMillis(PowerStateWatcher.DEFAULT_TIMEOUT_SECONDS),
+                        "Waiting for virtual computer " + name + " to start");
+            }
+            Node slave = new VirtualComputerSlave(name, "Virtual computer provisioned from " + datacenterUri,
+                    template.getRemoteFS(), template.getNumExecutors(), Node.Mode.NORMAL, template.getLabelString(),
+                    new VirtualComputerLauncher(template.getDelegateLauncher(), virtualComputer), null,
+                    template.getRetentionStrategy(), Collections.<NodeProperty<?>>emptyList(),
+                    datacenterUri, name, null, 0);
+            // added straight away rather than when the NodeProvisioner next looks at the planned node, which adds the
+            // same node again to no effect
+            Hudson.getInstance().addNode(slave);
+            return slave;
+        }
+    }
+
+    /**
+     * Tracks a provisioning so that the same virtual computer is not provisioned twice while Hudson has not yet
+     * added the slave it produced.
+     */
+    private static final class ProvisionFuture extends FutureTask<Node> {
+        /**
+         * How long a successfully provisioned slave may take to be added to Hudson.
+         */
+        private static final long ADD_NODE_GRACE_MILLIS = TimeUnit.SECONDS.toMillis(300);
+
+        private volatile long completed = 0;
+
+        private ProvisionFuture(Callable<Node> callable) {
+            super(callable);
+        }
+
+        @Override
+        protected void done() {
+            completed = System.currentTimeMillis();
+        }
+
+        private boolean isAwaitingNode() {
+            if (!isDone()) {
+                return true;
+            }
+            try {
+                get();
+            } catch (Exception e) {
+                return false;
+            }
+            return System.currentTimeMillis() - completed < ADD_NODE_GRACE_MILLIS;
+        }
+    }
+
+    /**
+     * An immutable snapshot of the computers in the datacenter. It only holds records, the {@link Computer} handles
+     * are kept in the bounded {@link ComputerHandleCache}.
+     */
+    static final class Inventory {
+        final Map<String, ComputerRecord> records;
+        final SortedMap<String, VirtualComputer> virtualComputers;
+        final long expires;
+
+        Inventory(Map<String, ComputerRecord> records, SortedMap<String, VirtualComputer> virtualComputers,
+                  long expires) {
+            this.records = Collections.unmodifiableMap(records);
+            this.virtualComputers = Collections.unmodifiableSortedMap(virtualComputers);
+            this.expires = expires;
+        }
+    }
+
+    static final class MakeConnection implements Callable<Datacenter> {
+        /**
+         * How long to wait for a connection to be established.
+         */
+        static final long CONNECT_TIMEOUT_SECONDS =
+                Long.getLong(VirtualDatacenter.class.getName() + ".connectTimeoutSeconds", 60L);
+
         private final String datacenterUri;
         private final String username;
         private final char[] password;
-        private volatile Datacenter datacenter = null;
-        private volatile IOException ioException = null;
 
-        private MakeConnectionThread(String datacenterUri, String username, char[] password) {
+        private MakeConnection(String datacenterUri, String username, char[] password) {
             this.datacenterUri = datacenterUri;
             this.username = username;
             this.password = password;
         }
 
+        /**
+         * Connects to a datacenter. On a datacenter worker the connect is made directly, as the worker may not wait
+         * for another task; the task it is running has a timeout of its own. Anywhere else the connect is made on a
+         * worker and given up after {@link #CONNECT_TIMEOUT_SECONDS}.
+         */
         public static Datacenter getConnection(String datacenterUri, String username, String password)
                 throws IOException, InterruptedException {
-            MakeConnectionThread t = new MakeConnectionThread(datacenterUri, username, password.toCharArray());
-            t.setContextClassLoader(VirtualDatacenter.class.getClassLoader());
-            t.start();
-            t.join();
-            if (t.datacenter != null) {
-                LOGGER.log(Level.INFO, "Have connection to datacenter URI: {0} as {1}/******",
-                        new Object[]{datacenterUri, username});
-                return t.datacenter;
+            if (VirtualizationExecutor.isDatacenterWorker()) {
+                return new MakeConnection(datacenterUri, username, password.toCharArray()).call();
             }
-            if (t.ioException == null) {
-                throw new IOException("Unknown error trying to establish a connection");
+            try {
+                Datacenter datacenter = VirtualizationExecutor.get()
+                        .call(new MakeConnection(datacenterUri, username, password.toCharArray()),
+                                CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                LOGGER.log(Level.FINE, "Have connection to datacenter URI: {0} as {1}/******",
+                        new Object[]{datacenterUri, username});
+                return datacenter;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                IOException ioe = new IOException("Unknown error trying to establish a connection");
+                ioe.initCause(e.getCause());
+                throw ioe;
+            } catch (TimeoutException e) {
+                throw new IOException("Timed out after " + CONNECT_TIMEOUT_SECONDS
+                        + " seconds trying to establish a connection to " + datacenterUri);
+            } catch (RejectedExecutionException e) {
+                IOException ioe = new IOException("Too many pending connection requests");
+                ioe.initCause(e);
+                throw ioe;
             }
-            throw t.ioException;
         }
 
-        @Override
-        public void run() {
+        public Datacenter call() throws IOException {
             try {
                 LOGGER.log(Level.INFO, "Trying to establish a connection to datacenter URI: {0} as {1}/******",
                         new Object[]{datacenterUri, username});
-                datacenter = DatacenterManager.getConnection(datacenterUri, username, password);
+                Datacenter datacenter = DatacenterManager.getConnection(datacenterUri, username, password);
                 LOGGER.log(Level.INFO, "Established connection to datacenter URI: {0} as {1}/******",
                         new Object[]{datacenterUri, username});
+                return datacenter;
             } catch (IOException e) {
                 LogRecord rec = new LogRecord(Level.WARNING,
                         "Failed to establish connection to datacenter URI: {0} as {1}/******");
                 rec.setThrown(e);
                 rec.setParameters(new Object[]{datacenterUri, username});
                 LOGGER.log(rec);
-                ioException = e;
+                throw e;
             }
         }
     }
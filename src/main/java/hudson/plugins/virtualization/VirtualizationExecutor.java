@@ -0,0 +1,296 @@
+package hudson.plugins.virtualization;
+
+import hudson.Extension;
+import hudson.model.listeners.ItemListener;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The plugin wide executor for talking to virtual datacenters.
+ * <p/>
+ * Work runs on bounded sets of named daemon threads that use the plugin's classloader, rather than on a new thread
+ * per call. There are two sets of workers:
+ * <ul>
+ * <li>the datacenter workers make single calls to a datacenter: connects, inventory refreshes, keep-alives and power
+ * state polls. A task on a datacenter worker never waits for another task of this executor, so these workers cannot
+ * starve each other.</li>
+ * <li>the power workers run work that waits for virtual computers to change power state, which can take minutes:
+ * provisioning, background suspends, pre-resumes and the power operations of build wrappers. They wait for the
+ * datacenter workers, never the other way round.</li>
+ * </ul>
+ * The scheduler only keeps time and hands anything that talks to a datacenter to a worker. Every task can be given a
+ * timeout after which it is cancelled, so a hung datacenter cannot pin its callers forever. Everything is cancelled
+ * when Hudson shuts down.
+ */
+public final class VirtualizationExecutor {
+
+    private static final Logger LOGGER = Logger.getLogger(VirtualizationExecutor.class.getName());
+
+    private static final int POOL_SIZE = Integer.getInteger(VirtualizationExecutor.class.getName() + ".poolSize", 8);
+
+    private static final int POWER_POOL_SIZE =
+            Integer.getInteger(VirtualizationExecutor.class.getName() + ".powerPoolSize", 32);
+
+    private static final int QUEUE_SIZE =
+            Integer.getInteger(VirtualizationExecutor.class.getName() + ".queueSize", 1000);
+
+    private static VirtualizationExecutor instance = null;
+
+    /**
+     * Set on the datacenter workers.
+     */
+    private static final ThreadLocal<Boolean> DATACENTER_WORKER = new ThreadLocal<Boolean>();
+
+    private final ThreadPoolExecutor executor;
+
+    private final ThreadPoolExecutor powerExecutor;
+
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    private VirtualizationExecutor() {
+        executor = new ThreadPoolExecutor(POOL_SIZE, POOL_SIZE, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(QUEUE_SIZE), new NamedThreadFactory("Virtualization worker", true));
+        powerExecutor = new ThreadPoolExecutor(POWER_POOL_SIZE, POWER_POOL_SIZE, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(QUEUE_SIZE),
+                new NamedThreadFactory("Virtualization power worker", false));
+        scheduler = new ScheduledThreadPoolExecutor(2, new NamedThreadFactory("Virtualization scheduler", false));
+    }
+
+    /**
+     * Returns the executor, creating it if necessary. Once Hudson is shutting down this returns the executor that
+     * was shut down, which rejects all work, rather than starting new threads.
+     */
+    public static synchronized VirtualizationExecutor get() {
+        if (instance == null) {
+            instance = new VirtualizationExecutor();
+        }
+        return instance;
+    }
+
+    /**
+     * Returns {@code true} if the calling thread is a datacenter worker, which must not wait for other tasks.
+     */
+    public static boolean isDatacenterWorker() {
+        return Boolean.TRUE.equals(DATACENTER_WORKER.get());
+    }
+
+    /**
+     * Submits a task to the datacenter workers.
+     *
+     * @throws RejectedExecutionException if the queue is full or the executor has been shut down.
+     */
+    public <T> Future<T> submit(Callable<T> task) {
+        return submit(new FutureTask<T>(task), 0, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Submits a task to the datacenter workers that will be cancelled (and interrupted) if it has not completed
+     * within the timeout.
+     *
+     * @param task    the task.
+     * @param timeout the timeout, zero or less for no timeout.
+     * @param unit    the unit of {@code timeout}.
+     * @return the task.
+     * @throws RejectedExecutionException if the queue is full or the executor has been shut down.
+     */
+    public <T> FutureTask<T> submit(FutureTask<T> task, long timeout, TimeUnit unit) {
+        return submit(executor, task, timeout, unit);
+    }
+
+    /**
+     * Submits a task that waits for power state transitions to the power workers.
+     *
+     * @throws RejectedExecutionException if the queue is full or the executor has been shut down.
+     */
+    public <T> FutureTask<T> submitPowerOperation(FutureTask<T> task) {
+        return submit(powerExecutor, task, 0, TimeUnit.SECONDS);
+    }
+
+    private <T> FutureTask<T> submit(ThreadPoolExecutor executor, final FutureTask<T> task, long timeout,
+                                     TimeUnit unit) {
+        Runnable command = task;
+        ScheduledFuture<?> timer = null;
+        if (timeout > 0) {
+            timer = scheduler.schedule(new Runnable() {
+                public void run() {
+                    task.cancel(true);
+                }
+            }, timeout, unit);
+            command = new TimedTask(task, timer);
+        }
+        try {
+            executor.execute(command);
+        } catch (RejectedExecutionException e) {
+            if (timer != null) {
+                cancelTimer(timer);
+            }
+            if (executor.isShutdown()) {
+                LOGGER.log(Level.FINE, "Rejected task, the executor has been shut down");
+            } else {
+                LOGGER.log(Level.WARNING, "Rejected task, {0} tasks queued", executor.getQueue().size());
+            }
+            throw e;
+        }
+        return task;
+    }
+
+    /**
+     * Cancels a timeout and takes it off the scheduler's queue straight away, rather than leaving it there until it
+     * would have fired.
+     */
+    private void cancelTimer(ScheduledFuture<?> timer) {
+        if (timer.cancel(false) && timer instanceof Runnable) {
+            scheduler.remove((Runnable) timer);
+        }
+    }
+
+    /**
+     * Runs a task and waits for its result, cancelling it if it does not complete within the timeout.
+     *
+     * @throws ExecutionException if the task failed.
+     * @throws TimeoutException   if the task did not complete within the timeout.
+     */
+    public <T> T call(Callable<T> task, long timeout, TimeUnit unit)
+            throws ExecutionException, TimeoutException, InterruptedException {
+        Future<T> future = submit(task);
+        try {
+            return future.get(timeout, unit);
+        } finally {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * Returns the scheduler that times periodic work such as power state polling. Tasks run by the scheduler must
+     * not talk to a datacenter themselves, they hand that to a worker.
+     */
+    public ScheduledExecutorService getScheduler() {
+        return scheduler;
+    }
+
+    /**
+     * Returns the number of tasks waiting for a datacenter worker.
+     */
+    public int getQueueDepth() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Returns the number of datacenter workers currently running a task.
+     */
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * Returns the number of tasks waiting for a power worker.
+     */
+    public int getPowerQueueDepth() {
+        return powerExecutor.getQueue().size();
+    }
+
+    /**
+     * Returns the number of power workers currently running a task.
+     */
+    public int getPowerActiveCount() {
+        return powerExecutor.getActiveCount();
+    }
+
+    private void shutdown() {
+        scheduler.shutdownNow();
+        cancel(powerExecutor.shutdownNow());
+        cancel(executor.shutdownNow());
+    }
+
+    /**
+     * Cancels the tasks that were dropped from a queue, so that whoever waits for them finds out.
+     */
+    private static void cancel(List<Runnable> dropped) {
+        for (Runnable command : dropped) {
+            if (command instanceof TimedTask) {
+                command = ((TimedTask) command).task;
+            }
+            if (command instanceof Future) {
+                ((Future<?>) command).cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Runs a task with a timeout, and takes the timeout off the scheduler once the task is done.
+     */
+    private final class TimedTask implements Runnable {
+        private final FutureTask<?> task;
+        private final ScheduledFuture<?> timer;
+
+        private TimedTask(FutureTask<?> task, ScheduledFuture<?> timer) {
+            this.task = task;
+            this.timer = timer;
+        }
+
+        public void run() {
+            try {
+                task.run();
+            } finally {
+                cancelTimer(timer);
+            }
+        }
+    }
+
+    private static final class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final boolean datacenterWorker;
+        private final AtomicInteger count = new AtomicInteger();
+
+        private NamedThreadFactory(String prefix, boolean datacenterWorker) {
+            this.prefix = prefix;
+            this.datacenterWorker = datacenterWorker;
+        }
+
+        public Thread newThread(final Runnable r) {
+            Runnable target = !datacenterWorker ? r : new Runnable() {
+                public void run() {
+                    DATACENTER_WORKER.set(Boolean.TRUE);
+                    r.run();
+                }
+            };
+            Thread t = new Thread(target, prefix + " #" + count.incrementAndGet());
+            t.setDaemon(true);
+            t.setContextClassLoader(VirtualizationExecutor.class.getClassLoader());
+            return t;
+        }
+    }
+
+    /**
+     * Cancels all outstanding work when Hudson shuts down.
+     */
+    @Extension
+    public static final class ShutdownListener extends ItemListener {
+        @Override
+        public void onBeforeShutdown() {
+            synchronized (VirtualizationExecutor.class) {
+                if (instance == null) {
+                    instance = new VirtualizationExecutor();
+                }
+                // kept, so that work submitted while the plugin stops is rejected
+                instance.shutdown();
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package hudson.plugins.virtualization;
+
+import hudson.Extension;
+import hudson.model.Hudson;
+import hudson.model.ManagementLink;
+import hudson.slaves.Cloud;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Shows the latency and throughput metrics of every {@link VirtualDatacenter}, both as a management page and as JSON
+ * at {@code /virtualization-metrics/json}.
+ */
+@Extension
+public class VirtualizationMetricsLink extends ManagementLink {
+
+    public String getIconFileName() {
+        return "computer.gif";
+    }
+
+    public String getDisplayName() {
+        return "Virtual Datacenter Metrics";
+    }
+
+    public String getUrlName() {
+        return "virtualization-metrics";
+    }
+
+    @Override
+    public String getDescription() {
+        return "Connection, inventory and power operation timings for each virtual datacenter";
+    }
+
+    public List<VirtualDatacenter> getDatacenters() {
+        Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+        List<VirtualDatacenter> result = new ArrayList<VirtualDatacenter>();
+        for (Cloud cloud : Hudson.getInstance().clouds) {
+            if (cloud instanceof VirtualDatacenter) {
+                result.add((VirtualDatacenter) cloud);
+            }
+        }
+        return result;
+    }
+
+    public VirtualizationExecutor getExecutor() {
+        return VirtualizationExecutor.get();
+    }
+
+    public void doJson(StaplerRequest req, StaplerResponse rsp) throws IOException {
+        JSONObject datacenters = new JSONObject();
+        for (VirtualDatacenter datacenter : getDatacenters()) {
+            JSONObject metrics = datacenter.getMetrics().toJSON();
+            metrics.getJSONObject("gauges").put("openConnections", datacenter.getOpenConnectionCount());
+            metrics.getJSONObject("gauges").put("queuedPowerOperations", datacenter.getQueuedPowerOperations());
+            metrics.getJSONObject("gauges").put("unreachable", datacenter.isUnreachable());
+            datacenters.put(datacenter.getDatacenterUri(), metrics);
+        }
+        JSONObject executor = new JSONObject();
+        executor.put("queueDepth", getExecutor().getQueueDepth());
+        executor.put("activeCount", getExecutor().getActiveCount());
+        executor.put("powerQueueDepth", getExecutor().getPowerQueueDepth());
+        executor.put("powerActiveCount", getExecutor().getPowerActiveCount());
+        JSONObject result = new JSONObject();
+        result.put("datacenters", datacenters);
+        result.put("executor", executor);
+        rsp.setContentType("application/json;charset=UTF-8");
+        rsp.getWriter().print(result.toString(2));
+    }
+}
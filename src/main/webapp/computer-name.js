@@ -0,0 +1,36 @@
+// Completes virtual computer names from the descriptor's autoCompleteComputerName method. The datacenter selected in
+// the same section of the form, if any, narrows the names offered.
+
+// Returns the URI of the datacenter selected in the same section of the form as e, or "" if there is none. Also used
+// by the checkUrl of the computer name inputs.
+function virtualizationDatacenterUri(e) {
+    for (var p = e.parentNode; p != null && p.getElementsByTagName; p = p.parentNode) {
+        var selects = p.getElementsByTagName("select");
+        for (var i = 0; i < selects.length; i++) {
+            if (/datacenterUri$/.test(selects[i].name)) {
+                return selects[i].value;
+            }
+        }
+    }
+    return "";
+}
+
+Behaviour.register({
+    "INPUT.virtualization-computer-name" : function(e) {
+        var container = document.createElement("div");
+        container.style.position = "absolute";
+        container.style.zIndex = "1000";
+        e.parentNode.style.position = "relative";
+        e.parentNode.appendChild(container);
+
+        var ds = new YAHOO.widget.DS_XHR(e.getAttribute("completionUrl"), ["suggestions", "name"]);
+        ds.scriptQueryParam = "value";
+
+        var ac = new YAHOO.widget.AutoComplete(e, container, ds);
+        ac.queryDelay = 0.3;
+        ac.useShadow = true;
+        ac.textboxFocusEvent.subscribe(function() {
+            ds.scriptQueryAppend = "datacenterUri=" + encodeURIComponent(virtualizationDatacenterUri(e));
+        });
+    }
+});
@@ -0,0 +1,85 @@
+package hudson.plugins.virtualization;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+
+public class CircuitBreakerTest extends TestCase {
+
+    private static final long BACKOFF_MILLIS = 200;
+
+    private CircuitBreaker breaker;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        breaker = new CircuitBreaker("vcc+test://", 3, BACKOFF_MILLIS, 4 * BACKOFF_MILLIS);
+    }
+
+    public void testStaysClosedBelowThreshold() throws Exception {
+        failAttempts(2);
+        assertFalse(breaker.isOpen());
+        breaker.acquire();
+    }
+
+    public void testOpensAtThreshold() throws Exception {
+        failAttempts(3);
+        assertTrue(breaker.isOpen());
+        assertRefused();
+    }
+
+    public void testSuccessResetsFailures() throws Exception {
+        failAttempts(2);
+        breaker.acquire();
+        breaker.succeeded();
+        failAttempts(2);
+        assertFalse(breaker.isOpen());
+    }
+
+    public void testLetsOneProbeThroughAfterBackoff() throws Exception {
+        failAttempts(3);
+        Thread.sleep(BACKOFF_MILLIS + 50);
+        breaker.acquire();
+        // only the one probe while it is in flight
+        assertRefused();
+        breaker.succeeded();
+        assertFalse(breaker.isOpen());
+        breaker.acquire();
+    }
+
+    public void testFailedProbeDoublesBackoff() throws Exception {
+        failAttempts(3);
+        Thread.sleep(BACKOFF_MILLIS + 50);
+        breaker.acquire();
+        breaker.failed();
+        Thread.sleep(BACKOFF_MILLIS + 50);
+        assertRefused();
+        Thread.sleep(BACKOFF_MILLIS);
+        breaker.acquire();
+    }
+
+    public void testAbandonedProbeLetsAnotherThrough() throws Exception {
+        failAttempts(3);
+        Thread.sleep(BACKOFF_MILLIS + 50);
+        breaker.acquire();
+        breaker.abandon();
+        breaker.acquire();
+        assertTrue(breaker.isOpen());
+    }
+
+    private void failAttempts(int times) throws IOException {
+        for (int i = 0; i < times; i++) {
+            breaker.acquire();
+            breaker.failed();
+        }
+    }
+
+    private void assertRefused() {
+        try {
+            breaker.acquire();
+            fail("expected the breaker to refuse the attempt");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package hudson.plugins.virtualization;
+
+import junit.framework.TestCase;
+import net.java.dev.vcc.api.Computer;
+import net.java.dev.vcc.api.PowerState;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+public class ComputerHandleCacheTest extends TestCase {
+
+    public void testKeepsHandlesWhileThereIsRoom() {
+        ComputerHandleCache cache = new ComputerHandleCache(2);
+        Computer a = computer("a");
+        cache.offer("a", a);
+        cache.offer("b", computer("b"));
+        cache.offer("c", computer("c"));
+        assertEquals(2, cache.getCount());
+        assertSame(a, cache.get("a"));
+        assertNull(cache.get("c"));
+    }
+
+    public void testKeepsWantedHandleWhenFull() {
+        ComputerHandleCache cache = new ComputerHandleCache(2);
+        cache.offer("a", computer("a"));
+        cache.offer("b", computer("b"));
+        // a miss marks the name as wanted by the next refresh
+        assertNull(cache.get("c"));
+        Computer c = computer("c");
+        cache.offer("c", c);
+        assertSame(c, cache.get("c"));
+        assertEquals(2, cache.getCount());
+    }
+
+    public void testEvictsLeastRecentlyUsed() {
+        ComputerHandleCache cache = new ComputerHandleCache(2);
+        Computer a = computer("a");
+        cache.offer("a", a);
+        cache.offer("b", computer("b"));
+        cache.get("a");
+        cache.get("c");
+        cache.offer("c", computer("c"));
+        assertSame(a, cache.get("a"));
+        assertNull(cache.get("b"));
+    }
+
+    public void testPutEvictsLeastRecentlyUsed() {
+        ComputerHandleCache cache = new ComputerHandleCache(2);
+        cache.offer("a", computer("a"));
+        Computer b = computer("b");
+        cache.offer("b", b);
+        cache.get("b");
+        Computer c = computer("c");
+        cache.put("c", c);
+        assertSame(c, cache.get("c"));
+        assertSame(b, cache.get("b"));
+        assertEquals(2, cache.getCount());
+        assertNull(cache.get("a"));
+    }
+
+    public void testRefreshIsNotAUse() {
+        ComputerHandleCache cache = new ComputerHandleCache(2);
+        cache.offer("a", computer("a"));
+        Computer b = computer("b");
+        cache.offer("b", b);
+        cache.get("b");
+        // the refresh replaces the handle of a but must not move it ahead of b
+        Computer a = computer("a");
+        cache.offer("a", a);
+        cache.get("c");
+        cache.offer("c", computer("c"));
+        assertNull(cache.get("a"));
+        assertSame(b, cache.get("b"));
+    }
+
+    public void testRefreshReplacesHandle() {
+        ComputerHandleCache cache = new ComputerHandleCache(2);
+        cache.offer("a", computer("a"));
+        Computer fresh = computer("a");
+        cache.offer("a", fresh);
+        assertSame(fresh, cache.get("a"));
+    }
+
+    public void testRetainAllDropsRemovedComputers() {
+        ComputerHandleCache cache = new ComputerHandleCache(3);
+        cache.offer("a", computer("a"));
+        cache.offer("b", computer("b"));
+        cache.retainAll(new HashSet<String>(Arrays.asList("a")));
+        assertEquals(1, cache.getCount());
+        assertNull(cache.get("b"));
+    }
+
+    public void testRemove() {
+        ComputerHandleCache cache = new ComputerHandleCache(2);
+        cache.offer("a", computer("a"));
+        cache.remove("a");
+        assertEquals(0, cache.getCount());
+        assertNull(cache.get("a"));
+    }
+
+    private static Computer computer(String name) {
+        return new FakeComputer(name, PowerState.RUNNING).getComputer();
+    }
+}
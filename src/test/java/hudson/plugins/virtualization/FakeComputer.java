@@ -0,0 +1,197 @@
+package hudson.plugins.virtualization;
+
+import net.java.dev.vcc.api.Computer;
+import net.java.dev.vcc.api.ManagedObjectId;
+import net.java.dev.vcc.api.PowerState;
+import net.java.dev.vcc.api.commands.StartComputer;
+import net.java.dev.vcc.api.commands.SuspendComputer;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A stand-in for a vcc-api {@link Computer} that changes power state when it is told to.
+ * <p/>
+ * Power commands take effect straight away unless the computer is held, in which case they take effect when it is
+ * released. Every call can be made to take as long as a round trip to a real datacenter. Methods the tests do not
+ * need return {@code null}, {@code false} or zero.
+ */
+final class FakeComputer implements InvocationHandler {
+
+    private final String name;
+    private final ManagedObjectId<Computer> id;
+    private final Computer proxy;
+    private final AtomicInteger commands = new AtomicInteger();
+    private final AtomicInteger stateQueries = new AtomicInteger();
+
+    private PowerState state;
+    private PowerState pending;
+    private boolean held;
+    private volatile long latencyNanos;
+
+    FakeComputer(String name, PowerState state) {
+        this.name = name;
+        this.id = newId(name);
+        this.state = state;
+        this.proxy = (Computer) Proxy.newProxyInstance(Computer.class.getClassLoader(),
+                new Class<?>[]{Computer.class}, this);
+    }
+
+    Computer getComputer() {
+        return proxy;
+    }
+
+    ManagedObjectId<Computer> getId() {
+        return id;
+    }
+
+    /**
+     * Makes every call to the computer take at least the given time.
+     */
+    void setLatency(long latency, TimeUnit unit) {
+        latencyNanos = unit.toNanos(latency);
+    }
+
+    /**
+     * Returns how many power commands the computer was sent.
+     */
+    int getCommandCount() {
+        return commands.get();
+    }
+
+    /**
+     * Returns how many times the computer was asked for its power state.
+     */
+    int getStateQueryCount() {
+        return stateQueries.get();
+    }
+
+    synchronized PowerState getState() {
+        return state;
+    }
+
+    /**
+     * Keeps power commands from taking effect until {@link #release()}.
+     */
+    synchronized void hold() {
+        held = true;
+    }
+
+    synchronized void release() {
+        held = false;
+        if (pending != null) {
+            state = pending;
+            pending = null;
+        }
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String methodName = method.getName();
+        if ("getName".equals(methodName)) {
+            return name;
+        }
+        if ("getId".equals(methodName)) {
+            return id;
+        }
+        if ("getState".equals(methodName)) {
+            stateQueries.incrementAndGet();
+            delay(latencyNanos);
+            return getState();
+        }
+        if ("execute".equals(methodName)) {
+            commands.incrementAndGet();
+            delay(latencyNanos);
+            if (args[0] instanceof StartComputer) {
+                transition(PowerState.RUNNING);
+            } else if (args[0] instanceof SuspendComputer) {
+                transition(PowerState.SUSPENDED);
+            }
+            // the command is its own future, it never completes as nothing runs it
+            return args[0];
+        }
+        if ("equals".equals(methodName)) {
+            return proxy == args[0];
+        }
+        if ("hashCode".equals(methodName)) {
+            return System.identityHashCode(proxy);
+        }
+        if ("toString".equals(methodName)) {
+            return "FakeComputer{" + name + "}";
+        }
+        return defaultValue(method.getReturnType());
+    }
+
+    private synchronized void transition(PowerState target) {
+        if (held) {
+            pending = target;
+        } else {
+            state = target;
+        }
+    }
+
+    static void delay(long nanos) throws InterruptedException {
+        if (nanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        }
+    }
+
+    /**
+     * Makes an id for a computer. vcc-api only creates ids inside its datacenter implementations, so this uses
+     * whichever constructor it has, filling in the type and the name.
+     */
+    @SuppressWarnings("unchecked")
+    private static ManagedObjectId<Computer> newId(String name) {
+        try {
+            for (Constructor<?> constructor : ManagedObjectId.class.getDeclaredConstructors()) {
+                Class<?>[] types = constructor.getParameterTypes();
+                Object[] args = new Object[types.length];
+                for (int i = 0; i < types.length; i++) {
+                    if (types[i] == Class.class) {
+                        args[i] = Computer.class;
+                    } else if (types[i] == String.class) {
+                        args[i] = "fake:" + name;
+                    } else {
+                        args[i] = defaultValue(types[i]);
+                    }
+                }
+                constructor.setAccessible(true);
+                return (ManagedObjectId<Computer>) constructor.newInstance(args);
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not make an id for " + name, e);
+        }
+        throw new IllegalStateException("ManagedObjectId has no constructor");
+    }
+
+    static Object defaultValue(Class<?> type) {
+        if (!type.isPrimitive() || type == Void.TYPE) {
+            return null;
+        }
+        if (type == Boolean.TYPE) {
+            return Boolean.FALSE;
+        }
+        if (type == Character.TYPE) {
+            return Character.valueOf((char) 0);
+        }
+        if (type == Long.TYPE) {
+            return Long.valueOf(0);
+        }
+        if (type == Float.TYPE) {
+            return Float.valueOf(0);
+        }
+        if (type == Double.TYPE) {
+            return Double.valueOf(0);
+        }
+        if (type == Short.TYPE) {
+            return Short.valueOf((short) 0);
+        }
+        if (type == Byte.TYPE) {
+            return Byte.valueOf((byte) 0);
+        }
+        return Integer.valueOf(0);
+    }
+}
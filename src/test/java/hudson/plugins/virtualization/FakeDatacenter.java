@@ -0,0 +1,127 @@
+package hudson.plugins.virtualization;
+
+import net.java.dev.vcc.api.Computer;
+import net.java.dev.vcc.api.Datacenter;
+import net.java.dev.vcc.api.PowerState;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A stand-in for a vcc-api {@link Datacenter} holding a fixed set of {@link FakeComputer}s, which can be enumerated
+ * or looked up by id. Every call can be made to take as long as a round trip to a real datacenter.
+ */
+final class FakeDatacenter implements InvocationHandler {
+
+    private final List<FakeComputer> computers;
+    private final Map<Object, FakeComputer> byId;
+    private final Datacenter proxy;
+    private final AtomicInteger enumerations = new AtomicInteger();
+    private final AtomicInteger lookups = new AtomicInteger();
+
+    private volatile boolean open = true;
+    private volatile long latencyNanos;
+
+    /**
+     * @param size  how many computers the datacenter has, named {@code vm0000}, {@code vm0001} and so on.
+     * @param state the power state of every computer.
+     */
+    FakeDatacenter(int size, PowerState state) {
+        List<FakeComputer> computers = new ArrayList<FakeComputer>(size);
+        Map<Object, FakeComputer> byId = new HashMap<Object, FakeComputer>(size * 2);
+        for (int i = 0; i < size; i++) {
+            FakeComputer computer = new FakeComputer(name(i), state);
+            computers.add(computer);
+            byId.put(computer.getId(), computer);
+        }
+        this.computers = Collections.unmodifiableList(computers);
+        this.byId = byId;
+        this.proxy = (Datacenter) Proxy.newProxyInstance(Datacenter.class.getClassLoader(),
+                new Class<?>[]{Datacenter.class}, this);
+    }
+
+    static String name(int index) {
+        return String.format("vm%04d", index);
+    }
+
+    Datacenter getDatacenter() {
+        return proxy;
+    }
+
+    List<FakeComputer> getComputers() {
+        return computers;
+    }
+
+    /**
+     * Makes every call to the datacenter and its computers take at least the given time.
+     */
+    void setLatency(long latency, TimeUnit unit) {
+        latencyNanos = unit.toNanos(latency);
+        for (FakeComputer computer : computers) {
+            computer.setLatency(latency, unit);
+        }
+    }
+
+    /**
+     * Returns how many times the whole datacenter was enumerated.
+     */
+    int getEnumerationCount() {
+        return enumerations.get();
+    }
+
+    /**
+     * Returns how many times a single computer was looked up by its id.
+     */
+    int getLookupCount() {
+        return lookups.get();
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String methodName = method.getName();
+        if ("getAllComputers".equals(methodName)) {
+            enumerations.incrementAndGet();
+            FakeComputer.delay(latencyNanos);
+            Collection<Computer> result = Set.class.isAssignableFrom(method.getReturnType())
+                    ? new LinkedHashSet<Computer>()
+                    : new ArrayList<Computer>();
+            for (FakeComputer computer : computers) {
+                result.add(computer.getComputer());
+            }
+            return result;
+        }
+        if ("getComputer".equals(methodName)) {
+            lookups.incrementAndGet();
+            FakeComputer.delay(latencyNanos);
+            FakeComputer computer = byId.get(args[0]);
+            return computer == null ? null : computer.getComputer();
+        }
+        if ("isOpen".equals(methodName)) {
+            return open;
+        }
+        if ("close".equals(methodName)) {
+            open = false;
+            return null;
+        }
+        if ("equals".equals(methodName)) {
+            return proxy == args[0];
+        }
+        if ("hashCode".equals(methodName)) {
+            return System.identityHashCode(proxy);
+        }
+        if ("toString".equals(methodName)) {
+            return "FakeDatacenter{" + computers.size() + " computers}";
+        }
+        return FakeComputer.defaultValue(method.getReturnType());
+    }
+}
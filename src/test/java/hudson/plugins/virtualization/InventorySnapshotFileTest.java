@@ -0,0 +1,79 @@
+package hudson.plugins.virtualization;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class InventorySnapshotFileTest extends TestCase {
+
+    private File dir;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        dir = File.createTempFile("inventory", "");
+        assertTrue(dir.delete());
+        // written into a directory that does not exist yet
+        dir = new File(dir, "virtualization");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+        dir.getParentFile().delete();
+        super.tearDown();
+    }
+
+    public void testRoundTrip() throws Exception {
+        InventorySnapshotFile snapshot = new InventorySnapshotFile(new File(dir, "dc.inventory"));
+        List<String> names = Arrays.asList("build-01", "build-02", "t\u00e9st");
+        snapshot.write(names);
+        assertEquals(names, snapshot.read());
+    }
+
+    public void testEmptyInventory() throws Exception {
+        InventorySnapshotFile snapshot = new InventorySnapshotFile(new File(dir, "dc.inventory"));
+        snapshot.write(Collections.<String>emptyList());
+        assertEquals(Collections.<String>emptyList(), snapshot.read());
+    }
+
+    public void testReplacesPreviousSnapshot() throws Exception {
+        InventorySnapshotFile snapshot = new InventorySnapshotFile(new File(dir, "dc.inventory"));
+        snapshot.write(Arrays.asList("a", "b"));
+        snapshot.write(Arrays.asList("c"));
+        assertEquals(Arrays.asList("c"), snapshot.read());
+        assertFalse(new File(dir, "dc.inventory.tmp").exists());
+    }
+
+    public void testMissingSnapshot() throws Exception {
+        assertNull(new InventorySnapshotFile(new File(dir, "dc.inventory")).read());
+    }
+
+    public void testUnknownFormat() throws Exception {
+        File file = new File(dir, "dc.inventory");
+        assertTrue(dir.mkdirs());
+        write(file, "VCC-INVENTORY 2\nbuild-01\n");
+        assertNull(new InventorySnapshotFile(file).read());
+    }
+
+    private static void write(File file, String content) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+}
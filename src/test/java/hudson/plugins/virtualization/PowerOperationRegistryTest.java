@@ -0,0 +1,185 @@
+package hudson.plugins.virtualization;
+
+import hudson.util.StreamTaskListener;
+import junit.framework.TestCase;
+import net.java.dev.vcc.api.PowerState;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class PowerOperationRegistryTest extends TestCase {
+
+    private static final long TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private ExecutorService threads;
+    private DatacenterMetrics metrics;
+    private PowerOperationRegistry registry;
+    private ByteArrayOutputStream log;
+    private StreamTaskListener listener;
+    private Map<String, PowerState> recorded;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        threads = Executors.newCachedThreadPool();
+        metrics = new DatacenterMetrics();
+        recorded = new ConcurrentHashMap<String, PowerState>();
+        PowerStateRecorder recorder = new PowerStateRecorder() {
+            public void recordState(String name, PowerState state) {
+                recorded.put(name, state);
+            }
+        };
+        registry = new PowerOperationRegistry(new PowerOperationScheduler("vcc+test://", 0, 0,
+                PowerOperationScheduler.Source.LAUNCHER), metrics, new PowerStateWatcher("vcc+test://", recorder),
+                recorder);
+        log = new ByteArrayOutputStream();
+        listener = new StreamTaskListener(log);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        threads.shutdownNow();
+        super.tearDown();
+    }
+
+    public void testAlreadyInStateIssuesNoCommand() throws Exception {
+        FakeComputer computer = new FakeComputer("vm", PowerState.RUNNING);
+        assertFalse(transition(computer, PowerState.RUNNING, TIMEOUT_MILLIS));
+        assertEquals(0, computer.getCommandCount());
+    }
+
+    public void testPoweredOffComputerNeedsNoSuspend() throws Exception {
+        FakeComputer computer = new FakeComputer("vm", PowerState.POWERED_OFF);
+        assertFalse(transition(computer, PowerState.SUSPENDED, TIMEOUT_MILLIS));
+        assertEquals(0, computer.getCommandCount());
+    }
+
+    public void testStartsSuspendedComputer() throws Exception {
+        FakeComputer computer = new FakeComputer("vm", PowerState.SUSPENDED);
+        assertTrue(transition(computer, PowerState.RUNNING, TIMEOUT_MILLIS));
+        assertEquals(PowerState.RUNNING, computer.getState());
+        assertEquals(1, computer.getCommandCount());
+        assertEquals(0, metrics.getPowerOperationsInFlight());
+    }
+
+    public void testRecordsStateReached() throws Exception {
+        FakeComputer computer = new FakeComputer("vm", PowerState.RUNNING);
+        assertTrue(transition(computer, PowerState.SUSPENDED, TIMEOUT_MILLIS));
+        assertEquals(PowerState.SUSPENDED, recorded.get("vm"));
+    }
+
+    public void testRecordsStateFound() throws Exception {
+        FakeComputer computer = new FakeComputer("vm", PowerState.POWERED_OFF);
+        assertFalse(transition(computer, PowerState.SUSPENDED, TIMEOUT_MILLIS));
+        assertEquals(PowerState.POWERED_OFF, recorded.get("vm"));
+    }
+
+    public void testRequestsForSameStateShareOneCommand() throws Exception {
+        FakeComputer computer = new FakeComputer("vm", PowerState.SUSPENDED);
+        computer.hold();
+        Future<Boolean> first = submit(computer, PowerState.RUNNING, PowerOperationRegistry.Ownership.NOBODY);
+        awaitCommands(computer, 1);
+        Future<Boolean> second = submit(computer, PowerState.RUNNING, PowerOperationRegistry.Ownership.NOBODY);
+        awaitLog("Joining the operation");
+        computer.release();
+        assertTrue(first.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue(second.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(1, computer.getCommandCount());
+    }
+
+    public void testSuspendBehindResumeIsDroppedWhileComputerIsHeld() throws Exception {
+        FakeComputer computer = new FakeComputer("vm", PowerState.SUSPENDED);
+        final AtomicReference<String> holder = new AtomicReference<String>();
+        computer.hold();
+        Future<Boolean> start = submit(computer, PowerState.RUNNING, PowerOperationRegistry.Ownership.NOBODY);
+        awaitCommands(computer, 1);
+        // the disconnect of the previous user asks for a suspend while the resume for the next one is in flight
+        Future<Boolean> suspend = submit(computer, PowerState.SUSPENDED, new PowerOperationRegistry.Ownership() {
+            public String getOtherHolder(String name) {
+                return holder.get();
+            }
+        });
+        awaitLog("to finish first");
+        holder.set("build #2");
+        computer.release();
+        assertTrue(start.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertFalse(suspend.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(1, computer.getCommandCount());
+        assertEquals(PowerState.RUNNING, computer.getState());
+        assertTrue(log.toString().contains("held by build #2"));
+    }
+
+    public void testSuspendBehindResumeRunsOnceComputerIsFree() throws Exception {
+        FakeComputer computer = new FakeComputer("vm", PowerState.SUSPENDED);
+        computer.hold();
+        Future<Boolean> start = submit(computer, PowerState.RUNNING, PowerOperationRegistry.Ownership.NOBODY);
+        awaitCommands(computer, 1);
+        Future<Boolean> suspend = submit(computer, PowerState.SUSPENDED, PowerOperationRegistry.Ownership.NOBODY);
+        awaitLog("to finish first");
+        assertEquals(1, computer.getCommandCount());
+        computer.release();
+        assertTrue(start.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue(suspend.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+        assertEquals(2, computer.getCommandCount());
+        assertEquals(PowerState.SUSPENDED, computer.getState());
+    }
+
+    public void testFailsWhenStateIsNotReachedInTime() throws Exception {
+        FakeComputer computer = new FakeComputer("vm", PowerState.SUSPENDED);
+        computer.hold();
+        try {
+            transition(computer, PowerState.RUNNING, 500);
+            fail("expected the transition to time out");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(1, metrics.getFailedPowerOperations());
+        assertEquals(0, metrics.getPowerOperationsInFlight());
+        // the failed operation no longer blocks the computer
+        computer.release();
+        assertFalse(transition(computer, PowerState.RUNNING, TIMEOUT_MILLIS));
+    }
+
+    private boolean transition(FakeComputer computer, PowerState target, long timeoutMillis) throws Exception {
+        return transition(computer, target, timeoutMillis, PowerOperationRegistry.Ownership.NOBODY);
+    }
+
+    private boolean transition(FakeComputer computer, PowerState target, long timeoutMillis,
+                               PowerOperationRegistry.Ownership ownership) throws Exception {
+        return registry.transition("vm", computer.getComputer(), target, PowerOperationScheduler.Source.LAUNCHER,
+                listener, timeoutMillis, "Waiting for vm to reach " + target, ownership);
+    }
+
+    private Future<Boolean> submit(final FakeComputer computer, final PowerState target,
+                                   final PowerOperationRegistry.Ownership ownership) {
+        return threads.submit(new Callable<Boolean>() {
+            public Boolean call() throws Exception {
+                return transition(computer, target, TIMEOUT_MILLIS, ownership);
+            }
+        });
+    }
+
+    private static void awaitCommands(FakeComputer computer, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (computer.getCommandCount() < count) {
+            assertTrue("timed out waiting for the command", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private void awaitLog(String text) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!log.toString().contains(text)) {
+            assertTrue("timed out waiting for \"" + text + "\"", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
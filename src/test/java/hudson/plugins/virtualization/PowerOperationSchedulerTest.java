@@ -0,0 +1,127 @@
+package hudson.plugins.virtualization;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class PowerOperationSchedulerTest extends TestCase {
+
+    private ExecutorService threads;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        threads = Executors.newCachedThreadPool();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        threads.shutdownNow();
+        super.tearDown();
+    }
+
+    public void testLimitsOperationsInFlight() throws Exception {
+        PowerOperationScheduler scheduler = new PowerOperationScheduler("vcc+test://", 1, 0,
+                PowerOperationScheduler.Source.LAUNCHER);
+        PowerOperationScheduler.Permit first = scheduler.acquire(PowerOperationScheduler.Source.LAUNCHER, "a", null);
+        Future<PowerOperationScheduler.Permit> second = acquire(scheduler, PowerOperationScheduler.Source.LAUNCHER,
+                "b");
+        assertBlocked(second);
+        first.release();
+        second.get(10, TimeUnit.SECONDS).release();
+        assertEquals(0, scheduler.getQueueLength());
+    }
+
+    public void testNoLimit() throws Exception {
+        PowerOperationScheduler scheduler = new PowerOperationScheduler("vcc+test://", 0, 0,
+                PowerOperationScheduler.Source.LAUNCHER);
+        for (int i = 0; i < 100; i++) {
+            scheduler.acquire(PowerOperationScheduler.Source.LAUNCHER, "vm" + i, null);
+        }
+    }
+
+    public void testReleasingTwiceFreesOneSlot() throws Exception {
+        PowerOperationScheduler scheduler = new PowerOperationScheduler("vcc+test://", 1, 0,
+                PowerOperationScheduler.Source.LAUNCHER);
+        PowerOperationScheduler.Permit first = scheduler.acquire(PowerOperationScheduler.Source.LAUNCHER, "a", null);
+        first.release();
+        first.release();
+        scheduler.acquire(PowerOperationScheduler.Source.LAUNCHER, "b", null);
+        assertBlocked(acquire(scheduler, PowerOperationScheduler.Source.LAUNCHER, "c"));
+    }
+
+    public void testAdmitsFavouredSourceFirst() throws Exception {
+        PowerOperationScheduler scheduler = new PowerOperationScheduler("vcc+test://", 1, 0,
+                PowerOperationScheduler.Source.BUILD_WRAPPER);
+        PowerOperationScheduler.Permit first = scheduler.acquire(PowerOperationScheduler.Source.LAUNCHER, "a", null);
+        final List<String> admitted = new CopyOnWriteArrayList<String>();
+        Future<?> launcher = threads.submit(admit(scheduler, PowerOperationScheduler.Source.LAUNCHER, "launcher",
+                admitted));
+        awaitQueueLength(scheduler, 1);
+        Future<?> wrapper = threads.submit(admit(scheduler, PowerOperationScheduler.Source.BUILD_WRAPPER, "wrapper",
+                admitted));
+        awaitQueueLength(scheduler, 2);
+        first.release();
+        launcher.get(10, TimeUnit.SECONDS);
+        wrapper.get(10, TimeUnit.SECONDS);
+        assertEquals("wrapper", admitted.get(0));
+        assertEquals("launcher", admitted.get(1));
+    }
+
+    public void testLimitsRate() throws Exception {
+        // one token every 100ms, and a bucket of one
+        PowerOperationScheduler scheduler = new PowerOperationScheduler("vcc+test://", 1, 600,
+                PowerOperationScheduler.Source.LAUNCHER);
+        scheduler.acquire(PowerOperationScheduler.Source.LAUNCHER, "a", null).release();
+        long start = System.currentTimeMillis();
+        scheduler.acquire(PowerOperationScheduler.Source.LAUNCHER, "b", null).release();
+        assertTrue(System.currentTimeMillis() - start >= 50);
+    }
+
+    private Future<PowerOperationScheduler.Permit> acquire(final PowerOperationScheduler scheduler,
+                                                           final PowerOperationScheduler.Source source,
+                                                           final String description) {
+        return threads.submit(new Callable<PowerOperationScheduler.Permit>() {
+            public PowerOperationScheduler.Permit call() throws Exception {
+                return scheduler.acquire(source, description, null);
+            }
+        });
+    }
+
+    private static Callable<Void> admit(final PowerOperationScheduler scheduler,
+                                        final PowerOperationScheduler.Source source, final String description,
+                                        final List<String> admitted) {
+        return new Callable<Void>() {
+            public Void call() throws Exception {
+                PowerOperationScheduler.Permit permit = scheduler.acquire(source, description, null);
+                admitted.add(description);
+                permit.release();
+                return null;
+            }
+        };
+    }
+
+    private static void awaitQueueLength(PowerOperationScheduler scheduler, int length) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (scheduler.getQueueLength() < length) {
+            assertTrue("timed out waiting for the queue", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static void assertBlocked(Future<?> future) throws Exception {
+        try {
+            future.get(200, TimeUnit.MILLISECONDS);
+            fail("expected the caller to be queued");
+        } catch (TimeoutException e) {
+            // expected
+        }
+    }
+}
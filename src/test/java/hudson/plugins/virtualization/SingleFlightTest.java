@@ -0,0 +1,109 @@
+package hudson.plugins.virtualization;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SingleFlightTest extends TestCase {
+
+    public void testConcurrentCallersShareOneCall() throws Exception {
+        final SingleFlight<String, String> flights = new SingleFlight<String, String>(0);
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final Callable<String> call = new Callable<String>() {
+            public String call() throws Exception {
+                calls.incrementAndGet();
+                entered.countDown();
+                proceed.await();
+                return "RUNNING";
+            }
+        };
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<String>> results = new ArrayList<Future<String>>();
+            results.add(threads.submit(get(flights, call)));
+            assertTrue(entered.await(10, TimeUnit.SECONDS));
+            for (int i = 0; i < 7; i++) {
+                results.add(threads.submit(get(flights, call)));
+            }
+            // give the late callers time to join the call in flight
+            Thread.sleep(200);
+            proceed.countDown();
+            for (Future<String> result : results) {
+                assertEquals("RUNNING", result.get(10, TimeUnit.SECONDS));
+            }
+            assertEquals(1, calls.get());
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    public void testReusesFreshResult() throws Exception {
+        SingleFlight<String, Integer> flights = new SingleFlight<String, Integer>(TimeUnit.MINUTES.toMillis(1));
+        Counter counter = new Counter();
+        assertEquals(Integer.valueOf(1), flights.get("vm", counter));
+        assertEquals(Integer.valueOf(1), flights.get("vm", counter));
+        assertEquals(1, counter.calls.get());
+    }
+
+    public void testCallsAgainOnceResultIsStale() throws Exception {
+        SingleFlight<String, Integer> flights = new SingleFlight<String, Integer>(0);
+        Counter counter = new Counter();
+        assertEquals(Integer.valueOf(1), flights.get("vm", counter));
+        assertEquals(Integer.valueOf(2), flights.get("vm", counter));
+    }
+
+    public void testKeysAreIndependent() throws Exception {
+        SingleFlight<String, Integer> flights = new SingleFlight<String, Integer>(TimeUnit.MINUTES.toMillis(1));
+        Counter counter = new Counter();
+        assertEquals(Integer.valueOf(1), flights.get("vm1", counter));
+        assertEquals(Integer.valueOf(2), flights.get("vm2", counter));
+    }
+
+    public void testFailuresAreNotReused() throws Exception {
+        SingleFlight<String, Integer> flights = new SingleFlight<String, Integer>(TimeUnit.MINUTES.toMillis(1));
+        final AtomicInteger calls = new AtomicInteger();
+        Callable<Integer> failOnce = new Callable<Integer>() {
+            public Integer call() throws Exception {
+                if (calls.incrementAndGet() == 1) {
+                    throw new IOException("unreachable");
+                }
+                return calls.get();
+            }
+        };
+        try {
+            flights.get("vm", failOnce);
+            fail("expected the failure of the call");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertEquals(Integer.valueOf(2), flights.get("vm", failOnce));
+    }
+
+    private static Callable<String> get(final SingleFlight<String, String> flights, final Callable<String> call) {
+        return new Callable<String>() {
+            public String call() throws Exception {
+                return flights.get("vm", call);
+            }
+        };
+    }
+
+    private static final class Counter implements Callable<Integer> {
+        private final AtomicInteger calls = new AtomicInteger();
+
+        public Integer call() throws Exception {
+            return calls.incrementAndGet();
+        }
+    }
+}